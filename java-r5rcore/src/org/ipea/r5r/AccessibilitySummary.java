@@ -0,0 +1,119 @@
+package org.ipea.r5r;
+
+import java.util.*;
+
+/**
+ * Population-weighted summaries of accessibility by group of origins: weighted mean, Gini index, Palma ratio and the
+ * shares of total accessibility held by the bottom 40% and the top 10% of the population.
+ *
+ * Accessibility of each origin is recorded as soon as the origin is done, in one slot per origin and indicator
+ * (opportunity, decay function, percentile and cutoff), so concurrent origins never write to the same place.
+ * Summaries are computed once all origins are recorded.
+ */
+public class AccessibilitySummary {
+
+    private final String[] groupNames;
+    private final int[] groupOfOrigin;
+    private final double[] originWeights;
+
+    private final double[][] accessibility; // [indicator][origin]
+
+    public AccessibilitySummary(String[] originGroups, double[] originWeights, int nIndicators) {
+        if (originGroups.length != originWeights.length) {
+            throw new IllegalArgumentException("Each origin must have one group and one weight.");
+        }
+
+        Map<String, Integer> groupIndex = new LinkedHashMap<>();
+        this.groupOfOrigin = new int[originGroups.length];
+        for (int origin = 0; origin < originGroups.length; origin++) {
+            groupOfOrigin[origin] = groupIndex.computeIfAbsent(originGroups[origin], g -> groupIndex.size());
+        }
+        this.groupNames = groupIndex.keySet().toArray(new String[0]);
+        this.originWeights = originWeights;
+
+        this.accessibility = new double[nIndicators][originGroups.length];
+    }
+
+    public int nGroups() { return groupNames.length; }
+    public String getGroupName(int group) { return groupNames[group]; }
+
+    public void record(int origin, int indicator, double value) {
+        accessibility[indicator][origin] = value;
+    }
+
+    /**
+     * Computes the summaries of one indicator for every group, as
+     * [group][population, mean, gini, palma, bottom 40% share, top 10% share].
+     */
+    public double[][] summarize(int indicator) {
+        double[][] summaries = new double[groupNames.length][];
+
+        List<List<Integer>> originsByGroup = new ArrayList<>();
+        for (int group = 0; group < groupNames.length; group++) originsByGroup.add(new ArrayList<>());
+        for (int origin = 0; origin < groupOfOrigin.length; origin++) {
+            if (originWeights[origin] > 0) originsByGroup.get(groupOfOrigin[origin]).add(origin);
+        }
+
+        double[] values = accessibility[indicator];
+        for (int group = 0; group < groupNames.length; group++) {
+            List<Integer> origins = originsByGroup.get(group);
+            origins.sort(Comparator.comparingDouble(origin -> values[origin]));
+            summaries[group] = summarize(origins, values);
+        }
+
+        return summaries;
+    }
+
+    private double[] summarize(List<Integer> sortedOrigins, double[] values) {
+        int n = sortedOrigins.size();
+        double[] weights = new double[n];
+        double[] sortedValues = new double[n];
+        double totalWeight = 0;
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            int origin = sortedOrigins.get(i);
+            weights[i] = originWeights[origin];
+            sortedValues[i] = values[origin];
+            totalWeight += weights[i];
+            total += weights[i] * sortedValues[i];
+        }
+
+        double mean = totalWeight > 0 ? total / totalWeight : Double.NaN;
+        if (total <= 0) {
+            return new double[] {totalWeight, mean, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        }
+
+        // Gini index from the area under the Lorenz curve
+        double gini = 1;
+        double populationShare = 0;
+        double accessibilityShare = 0;
+        for (int i = 0; i < n; i++) {
+            double nextPopulationShare = populationShare + weights[i] / totalWeight;
+            double nextAccessibilityShare = accessibilityShare + weights[i] * sortedValues[i] / total;
+            gini -= (nextPopulationShare - populationShare) * (nextAccessibilityShare + accessibilityShare);
+            populationShare = nextPopulationShare;
+            accessibilityShare = nextAccessibilityShare;
+        }
+
+        double bottom40 = lorenz(0.4, weights, sortedValues, totalWeight, total);
+        double top10 = 1 - lorenz(0.9, weights, sortedValues, totalWeight, total);
+        double palma = bottom40 > 0 ? top10 / bottom40 : Double.NaN;
+
+        return new double[] {totalWeight, mean, gini, palma, bottom40, top10};
+    }
+
+    /**
+     * Share of total accessibility held by the given share of the population with the lowest accessibility. The
+     * origin that straddles the population share is split proportionally to its weight.
+     */
+    private static double lorenz(double populationShare, double[] weights, double[] sortedValues, double totalWeight, double total) {
+        double remainingWeight = populationShare * totalWeight;
+        double accessibility = 0;
+        for (int i = 0; i < weights.length && remainingWeight > 0; i++) {
+            double weight = Math.min(weights[i], remainingWeight);
+            accessibility += weight * sortedValues[i];
+            remainingWeight -= weight;
+        }
+        return accessibility / total;
+    }
+}
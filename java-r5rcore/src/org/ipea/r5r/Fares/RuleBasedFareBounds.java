@@ -0,0 +1,35 @@
+package org.ipea.r5r.Fares;
+
+import com.conveyal.r5.analyst.fare.FareBounds;
+import com.conveyal.r5.analyst.fare.TransferAllowance;
+
+/**
+ * Fare bounds of a McRAPTOR state priced by RuleBasedInRoutingFareCalculator. Besides the capped fare and transfer
+ * allowance seen by the router, it keeps the partial result of the fare calculation, so states extending this one
+ * only need to price their new rides.
+ */
+public class RuleBasedFareBounds extends FareBounds {
+
+    // sum of all rides, before applying the fare cap
+    final int uncappedFare;
+    final int discountsApplied;
+
+    final int previousPatternIndex;
+    final int previousBoardTime;
+
+    final int currentPatternIndex;
+    final int currentBoardTime;
+
+    RuleBasedFareBounds(int cumulativeFarePaid, TransferAllowance transferAllowance, int uncappedFare,
+                        int discountsApplied, int previousPatternIndex, int previousBoardTime,
+                        int currentPatternIndex, int currentBoardTime) {
+        super(cumulativeFarePaid, transferAllowance);
+
+        this.uncappedFare = uncappedFare;
+        this.discountsApplied = discountsApplied;
+        this.previousPatternIndex = previousPatternIndex;
+        this.previousBoardTime = previousBoardTime;
+        this.currentPatternIndex = currentPatternIndex;
+        this.currentBoardTime = currentBoardTime;
+    }
+}
@@ -6,8 +6,6 @@ import com.conveyal.r5.analyst.fare.TransferAllowance;
 import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter;
 import com.conveyal.r5.transit.RouteInfo;
 import com.conveyal.r5.transit.TransitLayer;
-import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import org.ipea.r5r.Process.ParetoItineraryPlanner;
 import org.slf4j.LoggerFactory;
 
@@ -22,19 +20,60 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
     private FarePerRoute[] faresPerRoute;
     private FarePerTransfer[][] faresPerTransfer;
 
+    // largest discount any transfer from each type can give, used as the transfer allowance
+    private int[] maxTransferAllowancePerType;
+
+    // transfer allowance of states that cannot get any more discounts, shared since it holds no state
+    private static final TransferAllowance NO_TRANSFER_ALLOWANCE = new TransferAllowance();
+
+    /**
+     * Rides of the state being priced that are not covered by an ancestor's partial fare, from the last one to the
+     * first. calculateFare() is called for every McRAPTOR state, so these arrays are reused by each routing thread
+     * instead of being allocated per call.
+     */
+    private static class RideScratch {
+        int[] patterns = new int[16];
+        int[] boardTimes = new int[16];
+
+        void ensureCapacity(int nRides) {
+            if (nRides > patterns.length) {
+                patterns = Arrays.copyOf(patterns, nRides * 2);
+                boardTimes = Arrays.copyOf(boardTimes, nRides * 2);
+            }
+        }
+    }
+
+    private final ThreadLocal<RideScratch> rideScratch = ThreadLocal.withInitial(RideScratch::new);
+
     public FareStructure getFareStructure() {
         return fareStructure;
     }
 
     public RuleBasedInRoutingFareCalculator(TransitLayer transitLayer, String jsonData) {
+        this(FareStructure.fromJson(jsonData), getRouteIdPerPattern(transitLayer));
         this.transitLayer = transitLayer;
-        this.fareStructure = FareStructure.fromJson(jsonData);
+    }
+
+    /**
+     * Builds the calculator from the route_id of each trip pattern, so fares can be calculated without a network.
+     */
+    RuleBasedInRoutingFareCalculator(FareStructure fareStructure, String[] routeIdPerPattern) {
+        this.fareStructure = fareStructure;
 
         // fill fare information lookup tables
-        loadFareInformation();
+        loadFareInformation(routeIdPerPattern);
     }
 
-    private void loadFareInformation() {
+    private static String[] getRouteIdPerPattern(TransitLayer transitLayer) {
+        String[] routeIdPerPattern = new String[transitLayer.tripPatterns.size()];
+        for (int i = 0; i < transitLayer.tripPatterns.size(); i++) {
+            RouteInfo ri = transitLayer.routes.get(transitLayer.tripPatterns.get(i).routeIndex);
+            routeIdPerPattern[i] = ri.route_id;
+        }
+        return routeIdPerPattern;
+    }
+
+    private void loadFareInformation(String[] routeIdPerPattern) {
         // index for route info route_id
         Map<String, FarePerRoute> indexRouteInfo = new HashMap<>();
         for (FarePerRoute route : fareStructure.getFaresPerRoute()) {
@@ -47,11 +86,9 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
         }
 
         // load route info (fare per route)
-        this.faresPerRoute = new FarePerRoute[transitLayer.tripPatterns.size()];
-        for (int i = 0; i < transitLayer.tripPatterns.size(); i++) {
-            RouteInfo ri = transitLayer.routes.get(transitLayer.tripPatterns.get(i).routeIndex);
-
-            this.faresPerRoute[i] = indexRouteInfo.get(ri.route_id);
+        this.faresPerRoute = new FarePerRoute[routeIdPerPattern.length];
+        for (int i = 0; i < routeIdPerPattern.length; i++) {
+            this.faresPerRoute[i] = indexRouteInfo.get(routeIdPerPattern[i]);
             int typeIndex = indexTransportType.get(faresPerRoute[i].getFareType());
             faresPerRoute[i].setTypeIndex(typeIndex);
 
@@ -74,6 +111,19 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
             faresPerTransfer[firstTypeIndex][secondTypeIndex] = transfer;
         }
 
+        // max benefit from possible transfers starting at each type
+        this.maxTransferAllowancePerType = new int[nTypes];
+        for (int typeIndex = 0; typeIndex < nTypes; typeIndex++) {
+            for (FarePerTransfer transfer : faresPerTransfer[typeIndex]) {
+                if (transfer != null) {
+                    int fullTransferFare = transfer.getFirstLegFullIntegerFare() + transfer.getSecondLegFullIntegerFare();
+
+                    int allowance = fullTransferFare - transfer.getIntegerFare();
+                    maxTransferAllowancePerType[typeIndex] = Math.max(allowance, maxTransferAllowancePerType[typeIndex]);
+                }
+            }
+        }
+
     }
 
     private FarePerType getTypeByIndex(int index) {
@@ -86,22 +136,32 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
 
     @Override
     public FareBounds calculateFare(McRaptorSuboptimalPathProfileRouter.McRaptorState state, int maxClockTime) {
-        // extract and order relevant rides
-        TIntList patterns = new TIntArrayList();
-        TIntList boardTimes = new TIntArrayList();
-
-        while (state != null) {
-            if (state.pattern > -1) {
-                patterns.add(state.pattern);
-                boardTimes.add(state.boardTime);
+        // extract rides added since the closest ancestor already priced by this calculator into the scratch arrays
+        // of this thread, from the last ride to the first. Usually this is a single ride, so extending a state does
+        // not walk the whole chain back to the origin
+        RideScratch rides = rideScratch.get();
+        int nRides = 0;
+        RuleBasedFareBounds partialFare = null;
+
+        McRaptorSuboptimalPathProfileRouter.McRaptorState ancestor = state;
+        while (ancestor != null) {
+            if (ancestor != state && ancestor.fare instanceof RuleBasedFareBounds) {
+                partialFare = (RuleBasedFareBounds) ancestor.fare;
+                break;
+            }
+            if (ancestor.pattern > -1) {
+                rides.ensureCapacity(nRides + 1);
+                rides.patterns[nRides] = ancestor.pattern;
+                rides.boardTimes[nRides] = ancestor.boardTime;
+                nRides++;
             }
-            state = state.back;
+            ancestor = ancestor.back;
         }
 
-        patterns.reverse();
-        boardTimes.reverse();
+        // no new rides (e.g. a transfer), so the fare is the same as the ancestor's
+        if (partialFare != null && nRides == 0) return partialFare;
 
-        // start calculating fare
+        // start calculating fare, continuing from the ancestor's partial result if there is one
         int fareForState = 0;
 
         int previousPatternIndex = -1;
@@ -111,20 +171,32 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
         int currentPatternIndex = -1;
         int currentBoardTime = -1;
 
+        if (partialFare != null) {
+            fareForState = partialFare.uncappedFare;
+            previousPatternIndex = partialFare.previousPatternIndex;
+            discountsApplied = partialFare.discountsApplied;
+            previousBoardTime = partialFare.previousBoardTime;
+            currentPatternIndex = partialFare.currentPatternIndex;
+            currentBoardTime = partialFare.currentBoardTime;
+        }
+
+        int ride = nRides - 1;
+
         // first leg of multimodal trip
-        if (patterns.size() > 0) {
-            currentPatternIndex = patterns.get(0);
-            previousBoardTime = boardTimes.get(0);
+        if (previousPatternIndex == -1 && nRides > 0) {
+            currentPatternIndex = rides.patterns[ride];
+            previousBoardTime = rides.boardTimes[ride];
 
             fareForState = getFullFareForRoute(currentPatternIndex);
 
             previousPatternIndex = currentPatternIndex;
+            ride--;
         }
 
         // subsequent legs
-        for (int ride = 1; ride < patterns.size(); ride ++) {
-            currentPatternIndex = patterns.get(ride);
-            currentBoardTime = boardTimes.get(ride);
+        for (; ride >= 0; ride--) {
+            currentPatternIndex = rides.patterns[ride];
+            currentBoardTime = rides.boardTimes[ride];
 
             // get info on each leg
             FarePerRoute firstLegType = faresPerRoute[previousPatternIndex];
@@ -146,12 +218,14 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
             if (discountsApplied >= this.fareStructure.getMaxDiscountedTransfers()) {
                 // all discounts have been used. get full fare
                 fareForState += getFullFareForRoute(currentPatternIndex);
+            } else if (isDiscountedTransfer(previousPatternIndex, currentPatternIndex, currentBoardTime - previousBoardTime)) {
+                // discount the fare already considered in first leg
+                fareForState += getTransferByIndex(firstLegType.getTypeIndex(), secondLegType.getTypeIndex()).getIntegerFare()
+                        - getFullFareForRoute(previousPatternIndex);
+                discountsApplied++;
             } else {
-                // check for discounted transfer
-                IntegratedFare integratedFare = getIntegrationFare(previousPatternIndex, currentPatternIndex, currentBoardTime - previousBoardTime);
-
-                fareForState += integratedFare.fare;
-                if (integratedFare.usedDiscount) discountsApplied++;
+                // no discount, full fare for second leg
+                fareForState += getFullFareForRoute(currentPatternIndex);
             }
 
             previousPatternIndex = currentPatternIndex;
@@ -159,10 +233,19 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
         }
 
         // fares are limited by the maxFare parameter
+        int uncappedFare = fareForState;
         if (fareStructure.getFareCap() > 0) {
             fareForState = Math.min(fareForState, Math.round(fareStructure.getIntegerFareCap()));
         }
 
+        TransferAllowance transferAllowance = buildTransferAllowance(fareForState, discountsApplied, currentPatternIndex, currentBoardTime);
+
+        return new RuleBasedFareBounds(fareForState, transferAllowance, uncappedFare, discountsApplied,
+                previousPatternIndex, previousBoardTime, currentPatternIndex, currentBoardTime);
+    }
+
+    private TransferAllowance buildTransferAllowance(int fareForState, int discountsApplied,
+                                                     int currentPatternIndex, int currentBoardTime) {
         // initialize transfer allowance
         // if (discountsApplied >= this.fareStructure.getMaxDiscountedTransfers()) -> NO TRANSFER ALLOWANCE
         // if (currentBoardTime - previousBoardTime) > fareStructure.getTransferTimeAllowanceSeconds() -> NO TRANSFER ALLOWANCE
@@ -171,33 +254,25 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
         // if transfer allowances are inactive (for debugging purposes), just use and empty transfer allowance and
         // quit the function
         if (!ParetoItineraryPlanner.travelAllowanceActive) {
-            return new FareBounds(fareForState, new TransferAllowance());
+            return NO_TRANSFER_ALLOWANCE;
         }
 
         // pattern is valid?
         if (currentPatternIndex == -1) {
             // no public transport patterns - return empty transfer allowance
-            return new FareBounds(fareForState, new TransferAllowance());
+            return NO_TRANSFER_ALLOWANCE;
         }
 
         // remaining transfers
         int numberOfRemainingTransfers = fareStructure.getMaxDiscountedTransfers() - discountsApplied;
         if (numberOfRemainingTransfers <= 0) {
             // no remaining available transfers - return empty transfer allowance
-            return new FareBounds(fareForState, new TransferAllowance());
+            return NO_TRANSFER_ALLOWANCE;
         }
 
         // get max benefit from possible transfers
         int fullFare = getFullFareForRoute(currentPatternIndex);
-        int maxAllowanceValue = 0;
-        for (FarePerTransfer transfer : faresPerTransfer[faresPerRoute[currentPatternIndex].getTypeIndex()]) {
-            if (transfer != null) {
-                int fullTransferFare = transfer.getFirstLegFullIntegerFare() + transfer.getSecondLegFullIntegerFare();
-
-                int allowance = fullTransferFare - transfer.getIntegerFare();
-                maxAllowanceValue = Math.max(allowance, maxAllowanceValue);
-            }
-        }
+        int maxAllowanceValue = maxTransferAllowancePerType[faresPerRoute[currentPatternIndex].getTypeIndex()];
 
         // if fare cap has been reached, the max remaining allowance may be the type's full fare
         if (fareStructure.getFareCap() > 0 && fareForState > fareStructure.getIntegerFareCap() ) {
@@ -208,9 +283,7 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
         int expirationTime = currentBoardTime + fareStructure.getTransferTimeAllowanceSeconds();
 
         // build transfer allowance considering constraints above
-        TransferAllowance transferAllowance = new TransferAllowance(maxAllowanceValue, numberOfRemainingTransfers, expirationTime);
-        return new FareBounds(fareForState, transferAllowance);
-
+        return new TransferAllowance(maxAllowanceValue, numberOfRemainingTransfers, expirationTime);
     }
 
     private int getFullFareForRoute(int patternIndex) {
@@ -219,37 +292,24 @@ public class RuleBasedInRoutingFareCalculator extends InRoutingFareCalculator {
         return routeInfoData.getIntegerFare();
     }
 
-    private IntegratedFare getIntegrationFare(int firstPattern, int secondPattern, int transferTime) {
+    /**
+     * Checks if a transfer between two patterns gets the discounted fare of the transfers table.
+     */
+    private boolean isDiscountedTransfer(int firstPattern, int secondPattern, int transferTime) {
         FarePerRoute firstLeg = faresPerRoute[firstPattern];
         FarePerRoute secondLeg = faresPerRoute[secondPattern];
 
+        // there is no record in transfers table, so the second leg pays full fare
         FarePerTransfer transferFare = getTransferByIndex(firstLeg.getTypeIndex(), secondLeg.getTypeIndex());
-        if (transferFare == null) {
-            // there is no record in transfers table, return full fare of second route
-            int fareSecondLeg = getFullFareForRoute(secondPattern);
-            return new IntegratedFare(fareSecondLeg, false);
-        }
+        if (transferFare == null) return false;
 
         // discounted transfer found
         // check if transfer is allowed (transfer between same route ids)
-        if (!isTransferAllowed(firstLeg, secondLeg)) {
-            // transfer is not allowed, so return full fare for second leg
-            int fareSecondLeg = getFullFareForRoute(secondPattern);
-            return new IntegratedFare(fareSecondLeg, false);
-        }
+        if (!isTransferAllowed(firstLeg, secondLeg)) return false;
 
         // transfer is allowed
         // check if transfer time is within limits
-        if (transferTime > this.fareStructure.getTransferTimeAllowanceSeconds()) {
-            // transfer time expired, return full fare for second leg
-            int fareSecondLeg = getFullFareForRoute(secondPattern);
-            return new IntegratedFare(fareSecondLeg, false);
-        }
-
-        // all restrictions clear: transfer is allowed
-        // discount the fare already considered in first leg
-        int fareFirstLeg = getFullFareForRoute(firstPattern);
-        return new IntegratedFare(transferFare.getIntegerFare() - fareFirstLeg, true);
+        return transferTime <= this.fareStructure.getTransferTimeAllowanceSeconds();
     }
 
     private boolean isTransferAllowed(FarePerRoute firstLeg, FarePerRoute secondLeg) {
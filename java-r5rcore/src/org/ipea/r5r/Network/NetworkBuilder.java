@@ -51,7 +51,12 @@ public class NetworkBuilder {
     }
 
     public static TransportNetwork loadR5Network(String dataFolder) throws Exception {
-        return KryoNetworkSerializer.read(new File(dataFolder, "network.dat"));
+        File file = new File(dataFolder, "network.dat");
+        TransportNetwork network = KryoNetworkSerializer.read(file);
+
+        // on-disk caches are tied to this file
+        NetworkFingerprint.register(network, file);
+        return network;
     }
 
     public static void createR5Network(String dataFolder) {
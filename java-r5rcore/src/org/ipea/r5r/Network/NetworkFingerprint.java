@@ -0,0 +1,53 @@
+package org.ipea.r5r.Network;
+
+import com.conveyal.r5.transit.TransportNetwork;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Fingerprint of the content of the network.dat file a network was loaded from. On-disk caches of results that
+ * depend on the network (splits, travel times to stops) are tied to it, so they are not reused after the network is
+ * rebuilt, even if the new network has the same number of stops, patterns, vertices and edges.
+ *
+ * The file is hashed the first time a fingerprint is needed, so sessions that don't use any cache don't pay for it.
+ */
+public class NetworkFingerprint {
+    private static final Logger LOG = LoggerFactory.getLogger(NetworkFingerprint.class);
+
+    private static final Map<TransportNetwork, File> networkFiles = new WeakHashMap<>();
+    private static final Map<TransportNetwork, String> fingerprints = new WeakHashMap<>();
+
+    public static synchronized void register(TransportNetwork network, File networkFile) {
+        networkFiles.put(network, networkFile);
+        fingerprints.remove(network);
+    }
+
+    /**
+     * Returns the hash of the network.dat the network was loaded from, or null if it is unknown (the network was not
+     * loaded from a file, or the file could not be read).
+     */
+    public static synchronized String of(TransportNetwork network) {
+        String fingerprint = fingerprints.get(network);
+        if (fingerprint != null) return fingerprint;
+
+        File networkFile = networkFiles.get(network);
+        if (networkFile == null) return null;
+
+        try {
+            fingerprint = Files.asByteSource(networkFile).hash(Hashing.murmur3_128()).toString();
+        } catch (IOException e) {
+            LOG.warn("Could not read {} to identify the network.", networkFile);
+            return null;
+        }
+
+        fingerprints.put(network, fingerprint);
+        return fingerprint;
+    }
+}
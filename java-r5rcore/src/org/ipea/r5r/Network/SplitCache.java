@@ -0,0 +1,153 @@
+package org.ipea.r5r.Network;
+
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.Split;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of the points where coordinates snap to the street network, for each street mode. The same origins and
+ * destinations are usually linked in many calls, and finding a split (especially failing to find one within the
+ * link radius) is one of the costs of routing from a point.
+ *
+ * Coordinates are rounded to 1e-6 degrees (about 0.1 m). There is one cache per network, used by SnapFinder, and it
+ * can be saved next to network.dat and loaded again in later sessions. Routing does not use it, since R5's
+ * StreetRouter links its origin itself. Cached splits are shared and must not be modified.
+ */
+public class SplitCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SplitCache.class);
+
+    public static final String FILE_NAME = "split_cache.dat";
+
+    private static final int FORMAT_VERSION = 2;
+    private static final double COORDINATE_FACTOR = 1e6;
+    private static final int MAXIMUM_SIZE = 5_000_000;
+
+    // stands for coordinates that could not be linked, since ConcurrentHashMap does not hold nulls
+    private static final Split NOT_FOUND = new Split();
+
+    private static final Map<TransportNetwork, SplitCache> caches = new WeakHashMap<>();
+
+    private final TransportNetwork network;
+    private final Map<Long, Split> splits = new ConcurrentHashMap<>();
+
+    private SplitCache(TransportNetwork network) {
+        this.network = network;
+    }
+
+    public static synchronized SplitCache forNetwork(TransportNetwork network) {
+        return caches.computeIfAbsent(network, SplitCache::new);
+    }
+
+    /**
+     * Same as StreetLayer.findSplit() with the default link radius, or null if the coordinate is not near a street
+     * that allows the given mode.
+     */
+    public Split findSplit(double lat, double lon, StreetMode mode) {
+        long key = buildKey(lat, lon, mode);
+
+        Split split = splits.get(key);
+        if (split == null) {
+            split = network.streetLayer.findSplit(lat, lon, StreetLayer.LINK_RADIUS_METERS, mode);
+            if (split == null) split = NOT_FOUND;
+            if (splits.size() < MAXIMUM_SIZE) splits.put(key, split);
+        }
+
+        return split == NOT_FOUND ? null : split;
+    }
+
+    private static long buildKey(double lat, double lon, StreetMode mode) {
+        long latKey = Math.round((lat + 90) * COORDINATE_FACTOR);   // up to 28 bits
+        long lonKey = Math.round((lon + 180) * COORDINATE_FACTOR);  // up to 29 bits
+        return ((latKey << 29 | lonKey) << 3) | mode.ordinal();
+    }
+
+    /**
+     * Saves the cache in the network folder. The file is tied to the network by the fingerprint of its network.dat,
+     * so it is ignored after the network is rebuilt.
+     */
+    public void save(String dataFolder) {
+        String networkFingerprint = NetworkFingerprint.of(network);
+        if (networkFingerprint == null) {
+            LOG.warn("The network was not loaded from network.dat, so its split cache can't be saved.");
+            return;
+        }
+
+        File file = new File(dataFolder, FILE_NAME);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(networkFingerprint);
+            out.writeInt(splits.size());
+
+            for (Map.Entry<Long, Split> entry : splits.entrySet()) {
+                Split split = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeBoolean(split != NOT_FOUND);
+                if (split == NOT_FOUND) continue;
+
+                out.writeInt(split.edge);
+                out.writeInt(split.seg);
+                out.writeInt(split.fixedLat);
+                out.writeInt(split.fixedLon);
+                out.writeInt(split.distance0_mm);
+                out.writeInt(split.distance1_mm);
+                out.writeLong(split.distanceToEdge_mm);
+                out.writeInt(split.vertex0);
+                out.writeInt(split.vertex1);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not save split cache to {}.", file);
+        }
+    }
+
+    /**
+     * Loads a cache saved in the network folder, if there is one for this street network.
+     */
+    public void load(String dataFolder) {
+        File file = new File(dataFolder, FILE_NAME);
+        if (!file.exists()) return;
+
+        String networkFingerprint = NetworkFingerprint.of(network);
+        if (networkFingerprint == null) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(networkFingerprint)) {
+                LOG.info("Split cache in {} is from another network, ignoring it.", dataFolder);
+                return;
+            }
+
+            int nSplits = in.readInt();
+            for (int i = 0; i < nSplits; i++) {
+                long key = in.readLong();
+                if (!in.readBoolean()) {
+                    splits.put(key, NOT_FOUND);
+                    continue;
+                }
+
+                Split split = new Split();
+                split.edge = in.readInt();
+                split.seg = in.readInt();
+                split.fixedLat = in.readInt();
+                split.fixedLon = in.readInt();
+                split.distance0_mm = in.readInt();
+                split.distance1_mm = in.readInt();
+                split.distanceToEdge_mm = in.readLong();
+                split.vertex0 = in.readInt();
+                split.vertex1 = in.readInt();
+                splits.put(key, split);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read split cache from {}.", file);
+            splits.clear();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.ipea.r5r.Planner;
+
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded, thread-safe LRU cache of completed access and egress street searches.
+ *
+ * Detailed itineraries run one street search per access and egress mode for every OD pair, so many pairs sharing an
+ * origin or a destination repeat the same search. Searches are keyed by the coordinate, the street mode, time limit,
+ * direction and the speeds and traffic stress that affect routing. Coordinates that are not near the street network
+ * are cached too, so they are only linked once.
+ * Each cached router gets its own copy of the request, with the search direction fixed, and is only read after
+ * routing, so it can be shared by concurrent trips. Callers must not modify the router's profileRequest.
+ */
+public class StreetSearchCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+    private final TransportNetwork transportNetwork;
+    private final Cache<String, Optional<StreetRouter>> searches;
+
+    public StreetSearchCache(TransportNetwork transportNetwork) {
+        this(transportNetwork, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public StreetSearchCache(TransportNetwork transportNetwork, int maximumSize) {
+        this.transportNetwork = transportNetwork;
+        this.searches = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Returns a completed street search from the given coordinate, or null if the coordinate is not near the street
+     * network. The search direction is taken from request.reverseSearch.
+     */
+    public StreetRouter search(double lat, double lon, LegMode mode, ProfileRequest request, int timeLimitSeconds, boolean transitStopSearch) {
+        StreetMode streetMode = StreetMode.valueOf(mode.toString());
+
+        // StreetRouter.setOrigin() links the coordinate itself, so it is not snapped here just to build the key
+        String key = String.join(";",
+                String.valueOf(lat),
+                String.valueOf(lon),
+                streetMode.toString(),
+                String.valueOf(timeLimitSeconds),
+                String.valueOf(request.reverseSearch),
+                String.valueOf(transitStopSearch),
+                String.valueOf(request.walkSpeed),
+                String.valueOf(request.bikeSpeed),
+                String.valueOf(request.carSpeed),
+                String.valueOf(request.bikeTrafficStress)
+        );
+
+        try {
+            return searches.get(key, () -> Optional.ofNullable(route(lat, lon, streetMode, request, timeLimitSeconds, transitStopSearch))).orElse(null);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private StreetRouter route(double lat, double lon, StreetMode streetMode, ProfileRequest request, int timeLimitSeconds, boolean transitStopSearch) {
+        StreetRouter streetRouter = new StreetRouter(transportNetwork.streetLayer);
+        // the caller's request is changed by other trips (e.g. reverseSearch is flipped between access and egress
+        // searches), so the shared router keeps a private copy in the direction it was routed
+        streetRouter.profileRequest = request.clone();
+        streetRouter.profileRequest.reverseSearch = request.reverseSearch;
+        streetRouter.streetMode = streetMode;
+        streetRouter.timeLimitSeconds = timeLimitSeconds;
+        streetRouter.transitStopSearch = transitStopSearch;
+        streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+
+        if (!streetRouter.setOrigin(lat, lon)) return null;
+
+        streetRouter.route();
+        return streetRouter;
+    }
+}
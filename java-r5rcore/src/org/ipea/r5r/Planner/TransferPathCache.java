@@ -0,0 +1,95 @@
+package org.ipea.r5r.Planner;
+
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.api.util.StreetSegment;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.profile.StreetPath;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.list.TIntList;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static com.conveyal.r5.transit.TransitLayer.TRANSFER_DISTANCE_LIMIT_METERS;
+
+/**
+ * Run-wide cache of walking paths between transit stops, used for the transfer legs of detailed itineraries. The
+ * same stop pairs come up in many itineraries, so each pair is routed once and later transfers are a lookup.
+ *
+ * Concurrent trips may route the same pair at the same time; the first result stored is kept. Pairs with no walking
+ * path are cached as well.
+ */
+public class TransferPathCache {
+
+    private final TransportNetwork network;
+    private final Map<Long, Optional<StreetSegment>> transferPaths = new ConcurrentHashMap<>();
+
+    public TransferPathCache(TransportNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Returns the walking path between two stops, or null if there is none within the transfer distance limit.
+     */
+    public StreetSegment get(int fromStop, int toStop, ProfileRequest request) {
+        long key = ((long) fromStop << 32) | (toStop & 0xffffffffL);
+
+        Optional<StreetSegment> streetSegment = transferPaths.get(key);
+        if (streetSegment == null) {
+            streetSegment = Optional.ofNullable(route(fromStop, toStop, request));
+            Optional<StreetSegment> stored = transferPaths.putIfAbsent(key, streetSegment);
+            if (stored != null) streetSegment = stored;
+        }
+
+        return streetSegment.orElse(null);
+    }
+
+    /**
+     * Routes all transfers stored in the transit layer in parallel, so that itineraries only look them up.
+     */
+    public void preload(ForkJoinPool threadPool, ProfileRequest request) throws ExecutionException, InterruptedException {
+        threadPool.submit(() -> IntStream.range(0, network.transitLayer.getStopCount()).parallel().forEach(fromStop -> {
+            TIntList transfers = network.transitLayer.transfersForStop.get(fromStop);
+            if (transfers == null) return;
+
+            // transfers are stored as (target stop, distance in millimeters) pairs
+            for (int i = 0; i < transfers.size(); i += 2) {
+                get(fromStop, transfers.get(i), request);
+            }
+        })).get();
+    }
+
+    private StreetSegment route(int fromStop, int toStop, ProfileRequest request) {
+        StreetRouter streetRouter = new StreetRouter(network.streetLayer);
+        streetRouter.streetMode = StreetMode.WALK;
+        streetRouter.profileRequest = request;
+        //TODO: make configurable distanceLimitMeters in middle
+        streetRouter.distanceLimitMeters = TRANSFER_DISTANCE_LIMIT_METERS;
+
+        int stopVertexId = network.transitLayer.streetVertexForStop.get(fromStop);
+        if (stopVertexId < 0) return null;
+        streetRouter.setOrigin(stopVertexId);
+
+        Coordinate destStopCoord = network.transitLayer.getCoordinateForStopFixed(toStop);
+        if (destStopCoord == null) return null;
+        streetRouter.setDestination(destStopCoord.getY() / VertexStore.FIXED_FACTOR,
+                destStopCoord.getX() / VertexStore.FIXED_FACTOR);
+
+        streetRouter.route();
+
+        StreetRouter.State lastState = streetRouter.getState(destStopCoord.getY() / VertexStore.FIXED_FACTOR,
+                destStopCoord.getX() / VertexStore.FIXED_FACTOR);
+        if (lastState == null) return null;
+
+        StreetPath streetPath = new StreetPath(lastState, network, false);
+        return new StreetSegment(streetPath, LegMode.WALK, network.streetLayer);
+    }
+}
@@ -13,7 +13,6 @@ import com.conveyal.r5.transit.RouteInfo;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
-import org.apache.commons.collections4.map.MultiKeyMap;
 import org.ipea.r5r.Utils.Utils;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.LineString;
@@ -72,6 +71,10 @@ public class Trip {
         return totalDurationSeconds;
     }
 
+    void setTotalDurationSeconds(int totalDurationSeconds) {
+        this.totalDurationSeconds = totalDurationSeconds;
+    }
+
     public int getTotalDistance() {
         return totalDistance;
     }
@@ -165,11 +168,10 @@ public class Trip {
     }
 
     public void augment(Map<LegMode, StreetRouter> accessRouter, Map<LegMode, StreetRouter> egressRouter,
-                        TransportNetwork network, ProfileRequest request) {
+                        TransferPathCache transferPaths, TransportNetwork network, ProfileRequest request) {
 
         Map<Integer, StreetSegment> accessPaths = new HashMap<>();
         Map<Integer, StreetSegment> egressPaths = new HashMap<>();
-        MultiKeyMap<Integer, StreetSegment> transferPaths = new MultiKeyMap<>();
 
         if (!isDirect) {
             int tripDuration = 0;
@@ -270,8 +272,6 @@ public class Trip {
             StreetSegment streetSegment = accessPaths.get(startVertexStopIndex);
             if (streetSegment == null) {
                 StreetRouter streetRouter = accessRouter.get(accessMode);
-                //FIXME: Must we really update this on every streetrouter?
-                streetRouter.profileRequest.reverseSearch = false;
                 StreetRouter.State streetState = streetRouter.getStateAtVertex(startVertexStopIndex);
                 if (streetState != null) {
                     StreetPath streetPath;
@@ -316,8 +316,6 @@ public class Trip {
             StreetSegment streetSegment = egressPaths.get(endVertexStopIndex);
             if (streetSegment == null) {
                 StreetRouter streetRouter = egressRouter.get(egressMode);
-                //FIXME: Must we really update this on every streetrouter?
-                streetRouter.profileRequest.reverseSearch = true;
                 StreetRouter.State streetState = streetRouter.getStateAtVertex(endVertexStopIndex);
                 if (streetState != null) {
                     StreetPath streetPath = new StreetPath(streetState, network, true);
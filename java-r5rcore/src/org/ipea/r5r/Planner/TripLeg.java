@@ -1,16 +1,10 @@
 package org.ipea.r5r.Planner;
 
-import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.StreetSegment;
 import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.profile.ProfileRequest;
-import com.conveyal.r5.profile.StreetMode;
-import com.conveyal.r5.profile.StreetPath;
-import com.conveyal.r5.streets.StreetRouter;
-import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
-import org.apache.commons.collections4.map.MultiKeyMap;
 import org.ipea.r5r.Utils.Utils;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.LineString;
@@ -19,8 +13,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import static com.conveyal.r5.transit.TransitLayer.TRANSFER_DISTANCE_LIMIT_METERS;
-
 public class TripLeg {
     private String mode;
     private boolean isTransfer = false;
@@ -56,6 +48,9 @@ public class TripLeg {
 
     private LineString geometry;
 
+    // hops of a transit leg, joined into its geometry only when the geometry is requested
+    private List<LineString> transitHops;
+
     public String getMode() {
         return mode;
     }
@@ -89,6 +84,13 @@ public class TripLeg {
     }
 
     public LineString getGeometry() {
+        if (geometry == null && transitHops != null) {
+            List<Coordinate> coords = new ArrayList<>();
+            for (LineString hop : transitHops) {
+                coords.addAll(Arrays.asList(hop.getCoordinates()));
+            }
+            geometry = GeometryUtils.geometryFactory.createLineString(coords.toArray(new Coordinate[0]));
+        }
         return geometry;
     }
 
@@ -138,7 +140,7 @@ public class TripLeg {
         return newLeg;
     }
 
-    public void augmentTransitLeg(MultiKeyMap<Integer, StreetSegment> transferPaths,
+    public void augmentTransitLeg(TransferPathCache transferPaths,
                                   TransportNetwork network, ProfileRequest request) {
 //        TripPattern pattern = network.transitLayer.tripPatterns.get(state.pattern);
 //
@@ -146,55 +148,22 @@ public class TripLeg {
 //        int alightStopIndex = pattern.stops[state.alightStopPosition];
 
         if (isTransit) {
-            List<Coordinate> coords = new ArrayList<>();
             List<LineString> hops = pattern.getHopGeometries(network.transitLayer);
-            for (int i = boardStopPosition; i < alightStopPosition; i++) { // hop i is from stop i to i + 1, don't include last stop index
-                LineString hop = hops.get(i);
-                coords.addAll(Arrays.asList(hop.getCoordinates()));
-            }
-            geometry = GeometryUtils.geometryFactory.createLineString(coords.toArray(new Coordinate[0]));
-            legDistance = Utils.getLinestringLength(geometry);
+            // hop i is from stop i to i + 1, don't include last stop index
+            transitHops = hops.subList(boardStopPosition, alightStopPosition);
+            legDistance = Utils.getLinestringLength(transitHops);
         } else {
             // street path between stops
             if (this.fromStop > 0 & this.toStop > 0) {
-                StreetSegment streetSegment = transferPaths.get(this.fromStop, this.toStop);
-
-                if (streetSegment == null) {
-                    boolean prevReverseSearch = request.reverseSearch;
-                    request.reverseSearch = false;
-
-                    //LOG.info("Filling middle paths");
-                    StreetRouter streetRouter = new StreetRouter(network.streetLayer);
-                    streetRouter.streetMode = StreetMode.WALK;
-                    streetRouter.profileRequest = request;
-                    //TODO: make configurable distanceLimitMeters in middle
-                    streetRouter.distanceLimitMeters = TRANSFER_DISTANCE_LIMIT_METERS;
-
-                    int stopVertexId = network.transitLayer.streetVertexForStop.get(this.fromStop);
-                    streetRouter.setOrigin(stopVertexId);
-
-                    Coordinate destStopCoord = network.transitLayer.getCoordinateForStopFixed(this.toStop);
-                    streetRouter.setDestination(destStopCoord.getY() / VertexStore.FIXED_FACTOR,
-                            destStopCoord.getX() / VertexStore.FIXED_FACTOR);
-
-                    streetRouter.route();
-
-                    StreetRouter.State lastState = streetRouter.getState(destStopCoord.getY() / VertexStore.FIXED_FACTOR,
-                            destStopCoord.getX() / VertexStore.FIXED_FACTOR);
-
-                    if (lastState != null) {
-                        StreetPath streetPath = new StreetPath(lastState, network, false);
-                        streetSegment = new StreetSegment(streetPath, LegMode.WALK, network.streetLayer);
+                boolean prevReverseSearch = request.reverseSearch;
+                request.reverseSearch = false;
 
-                        this.legDurationSeconds = streetSegment.duration;
-                        this.geometry = streetSegment.geometry;
-                        this.legDistance = Utils.getLinestringLength(geometry);
+                StreetSegment streetSegment = transferPaths.get(this.fromStop, this.toStop, request);
 
-                        transferPaths.put(this.fromStop, this.toStop, streetSegment);
-                    }
+                request.reverseSearch = prevReverseSearch;
 
-                    request.reverseSearch = prevReverseSearch;
-                } else {
+                if (streetSegment != null) {
+                    this.legDurationSeconds = streetSegment.duration;
                     this.geometry = streetSegment.geometry;
                     this.legDistance = Utils.getLinestringLength(geometry);
                 }
@@ -7,6 +7,7 @@ import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.TransportNetwork;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +28,9 @@ public class TripPlanner {
     private final TransportNetwork transportNetwork;
     private final ProfileRequest request;
 
+    private StreetSearchCache streetSearchCache = null;
+    private TransferPathCache transferPathCache = null;
+
     public void setOD(String fromId, String toId) {
         this.fromId = fromId;
         this.toId = toId;
@@ -36,6 +40,14 @@ public class TripPlanner {
         this.shortestPath = shortestPath;
     }
 
+    public void setStreetSearchCache(StreetSearchCache streetSearchCache) {
+        this.streetSearchCache = streetSearchCache;
+    }
+
+    public void setTransferPathCache(TransferPathCache transferPathCache) {
+        this.transferPathCache = transferPathCache;
+    }
+
     public TripPlanner(TransportNetwork transportNetwork, ProfileRequest request) {
         this.transportNetwork = transportNetwork;
         this.request = request;
@@ -64,22 +76,8 @@ public class TripPlanner {
                     .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getReachedStops()));
 
             // Build RAPTOR router
-            IntFunction<DominatingList> listSupplier;
-
-            if (request.inRoutingFareCalculator != null) {
-                listSupplier = (departureTime) -> new FareDominatingList(
-                        request.inRoutingFareCalculator,
-                        request.maxFare,
-                        // while I appreciate the use of symbolic constants, I certainly hope the number of seconds per
-                        // minute does not change
-                        // in fact, we have been moving in the opposite direction with leap-second smearing
-                        departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
-            } else {
-                listSupplier = (t) -> new SuboptimalDominatingList(Math.max(request.suboptimalMinutes, 0));
-            }
-
             McRaptorSuboptimalPathProfileRouter router = new McRaptorSuboptimalPathProfileRouter(transportNetwork,
-                    request, accessTimes, egressTimes, listSupplier,
+                    request, accessTimes, egressTimes, buildListSupplier(),
                     null, true);
 
             router.route();
@@ -103,6 +101,140 @@ public class TripPlanner {
 
         }
 
+        return selectTrips(trips, accessRouter, egressRouter);
+    }
+
+    /**
+     * Plans trips from the origin in the request to several destinations, with one access search and one McRAPTOR
+     * run for all of them. McRAPTOR is run with the union of the egress stops of all destinations, each one with its
+     * shortest egress time, and the final states are then split per destination, keeping those that end at one of
+     * the destination's own egress stops, with that destination's egress time.
+     *
+     * Final states of all destinations share McRAPTOR's dominance check at the destination, so an option that is
+     * only dominated by an option to another destination may be dropped. Results are the same as plan() when the
+     * destinations' egress stops do not overlap in time, and may have fewer suboptimal options otherwise.
+     *
+     * @return trips to each destination, in the order of the destination arrays
+     */
+    public List<List<Trip>> planToDestinations(String[] toIds, double[] toLats, double[] toLons) {
+        int nDestinations = toIds.length;
+
+        List<Map<String, Trip>> tripsByDestination = new ArrayList<>(nDestinations);
+        for (int d = 0; d < nDestinations; d++) {
+            request.toLat = toLats[d];
+            request.toLon = toLons[d];
+
+            Map<String, Trip> trips = new HashMap<>();
+            this.toId = toIds[d];
+            findDirectPaths(request, trips);
+            tripsByDestination.add(trips);
+        }
+
+        Map<LegMode, StreetRouter> accessRouter = null;
+        List<Map<LegMode, StreetRouter>> egressRouters = new ArrayList<>(nDestinations);
+        for (int d = 0; d < nDestinations; d++) egressRouters.add(null);
+
+        if (request.hasTransit()) {
+            accessRouter = findAccessPaths(request);
+            Map<LegMode, TIntIntMap> accessTimes = accessRouter.entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getReachedStops()));
+
+            // egress searches of each destination, and the union of their egress stops with the shortest times
+            List<Map<LegMode, TIntIntMap>> egressTimesByDestination = new ArrayList<>(nDestinations);
+            Map<LegMode, TIntIntMap> egressTimes = new HashMap<>();
+            for (int d = 0; d < nDestinations; d++) {
+                request.toLat = toLats[d];
+                request.toLon = toLons[d];
+
+                Map<LegMode, StreetRouter> egressRouter = findEgressPaths(request);
+                egressRouters.set(d, egressRouter);
+
+                Map<LegMode, TIntIntMap> destinationEgressTimes = new HashMap<>();
+                for (Map.Entry<LegMode, StreetRouter> entry : egressRouter.entrySet()) {
+                    TIntIntMap reachedStops = entry.getValue().getReachedStops();
+                    destinationEgressTimes.put(entry.getKey(), reachedStops);
+
+                    TIntIntMap unionStops = egressTimes.computeIfAbsent(entry.getKey(), m -> new TIntIntHashMap());
+                    reachedStops.forEachEntry((stop, time) -> {
+                        if (!unionStops.containsKey(stop) || unionStops.get(stop) > time) unionStops.put(stop, time);
+                        return true;
+                    });
+                }
+                egressTimesByDestination.add(destinationEgressTimes);
+            }
+
+            McRaptorSuboptimalPathProfileRouter router = new McRaptorSuboptimalPathProfileRouter(transportNetwork,
+                    request, accessTimes, egressTimes, buildListSupplier(),
+                    null, true);
+
+            router.route();
+
+            for (TIntObjectIterator<Collection<McRaptorSuboptimalPathProfileRouter.McRaptorState>> it =
+                 router.finalStatesByDepartureTime.iterator(); it.hasNext();) {
+                it.advance();
+
+                int departureTime = it.key();
+
+                for (McRaptorSuboptimalPathProfileRouter.McRaptorState state : it.value()) {
+                    // final states are at the destination, right after the egress stop
+                    McRaptorSuboptimalPathProfileRouter.McRaptorState stopState = state.stop == -1 ? state.back : state;
+                    if (stopState == null) continue;
+
+                    for (int d = 0; d < nDestinations; d++) {
+                        int egressTime = shortestEgressTime(egressTimesByDestination.get(d), stopState.stop);
+                        if (egressTime < 0) continue;
+
+                        request.toLat = toLats[d];
+                        request.toLon = toLons[d];
+
+                        Trip newTrip = new Trip(state, departureTime, transportNetwork, request);
+                        newTrip.setTotalDurationSeconds(stopState.time + egressTime - departureTime);
+                        newTrip.setOD(fromId, toIds[d], request);
+
+                        Map<String, Trip> trips = tripsByDestination.get(d);
+                        if (!trips.containsKey(newTrip.getKey()) ||
+                                trips.get(newTrip.getKey()).getTotalDurationSeconds() > newTrip.getTotalDurationSeconds()) {
+                            trips.put(newTrip.getKey(), newTrip);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<List<Trip>> tripLists = new ArrayList<>(nDestinations);
+        for (int d = 0; d < nDestinations; d++) {
+            tripLists.add(selectTrips(tripsByDestination.get(d), accessRouter, egressRouters.get(d)));
+        }
+
+        return tripLists;
+    }
+
+    private static int shortestEgressTime(Map<LegMode, TIntIntMap> egressTimes, int stop) {
+        int shortest = -1;
+        for (TIntIntMap stops : egressTimes.values()) {
+            if (stops.containsKey(stop) && (shortest < 0 || stops.get(stop) < shortest)) shortest = stops.get(stop);
+        }
+        return shortest;
+    }
+
+    private IntFunction<DominatingList> buildListSupplier() {
+        if (request.inRoutingFareCalculator != null) {
+            return (departureTime) -> new FareDominatingList(
+                    request.inRoutingFareCalculator,
+                    request.maxFare,
+                    // while I appreciate the use of symbolic constants, I certainly hope the number of seconds per
+                    // minute does not change
+                    // in fact, we have been moving in the opposite direction with leap-second smearing
+                    departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
+        } else {
+            return (t) -> new SuboptimalDominatingList(Math.max(request.suboptimalMinutes, 0));
+        }
+    }
+
+    /**
+     * Filters and sorts the trips to one destination, and fills in their access, egress and transfer paths.
+     */
+    private List<Trip> selectTrips(Map<String, Trip> trips, Map<LegMode, StreetRouter> accessRouter, Map<LegMode, StreetRouter> egressRouter) {
         List<Trip> tripList = new ArrayList<>(trips.values());
 
         tripList = tripList.stream()
@@ -114,8 +246,12 @@ public class TripPlanner {
             tripList = List.of(tripList.stream().min(Comparator.comparingInt(Trip::getTotalDurationSeconds)).get());
         }
 
-        for (Trip trip : trips.values()) {
-            trip.augment(accessRouter, egressRouter, transportNetwork, request);
+        // transfer paths are shared by the trips of a run, or only within this plan if no cache was set
+        TransferPathCache transferPaths = transferPathCache != null ? transferPathCache : new TransferPathCache(transportNetwork);
+
+        // only trips that are returned get their street paths and distances
+        for (Trip trip : tripList) {
+            trip.augment(accessRouter, egressRouter, transferPaths, transportNetwork, request);
         }
 
         return tripList;
@@ -177,8 +313,20 @@ public class TripPlanner {
         // Routes all access modes
         HashMap<LegMode, StreetRouter> accessRouter = new HashMap<>();
         for(LegMode mode: request.accessModes) {
+            if (streetSearchCache != null) {
+                StreetRouter streetRouter = streetSearchCache.search(request.fromLat, request.fromLon, mode, request,
+                        request.getMaxTimeSeconds(mode), true);
+                if (streetRouter != null) {
+                    accessRouter.put(mode, streetRouter);
+                } else {
+                    LOG.warn("MODE:{}, Edge near the origin coordinate wasn't found. Routing didn't start!", mode);
+                }
+                continue;
+            }
+
             StreetRouter streetRouter = new StreetRouter(transportNetwork.streetLayer);
-            streetRouter.profileRequest = request;
+            // own copy of the request, so the search direction is kept when trips read the router later
+            streetRouter.profileRequest = request.clone();
             streetRouter.streetMode = StreetMode.valueOf(mode.toString());
 
             //Gets correct maxCar/Bike/Walk time in seconds for access leg based on mode since it depends on the mode
@@ -208,13 +356,25 @@ public class TripPlanner {
         //TODO: this must be reverse search
         request.reverseSearch = true;
         for(LegMode mode: request.egressModes) {
+            if (streetSearchCache != null) {
+                StreetRouter streetRouter = streetSearchCache.search(request.toLat, request.toLon, mode, request,
+                        request.getMaxTimeSeconds(mode), true);
+                if (streetRouter != null) {
+                    egressRouter.put(mode, streetRouter);
+                } else {
+                    LOG.warn("MODE:{}, Edge near the origin coordinate wasn't found. Routing didn't start!", mode);
+                }
+                continue;
+            }
+
             StreetRouter streetRouter = new StreetRouter(transportNetwork.streetLayer);
             streetRouter.transitStopSearch = true;
             streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
 
             //TODO: add support for bike sharing
             streetRouter.streetMode = StreetMode.valueOf(mode.toString());
-            streetRouter.profileRequest = request;
+            // own copy of the request, so the search direction is kept when trips read the router later
+            streetRouter.profileRequest = request.clone();
             streetRouter.timeLimitSeconds = request.getMaxTimeSeconds(mode);
             if(streetRouter.setOrigin(request.toLat, request.toLon)) {
                 streetRouter.route();
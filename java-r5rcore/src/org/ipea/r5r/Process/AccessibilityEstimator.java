@@ -1,54 +1,204 @@
 package org.ipea.r5r.Process;
 
-import com.conveyal.r5.OneOriginResult;
-import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.r5.analyst.PointSet;
+import com.conveyal.r5.analyst.WebMercatorExtents;
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.decay.*;
 import com.conveyal.r5.transit.TransportNetwork;
+import org.ipea.r5r.AccessibilitySummary;
+import org.ipea.r5r.R5.AccessibilityReducer;
+import org.ipea.r5r.R5.CatchmentAccessibilityReducer;
+import org.ipea.r5r.R5.CatchmentDemandReducer;
+import org.ipea.r5r.R5.DecayWeights;
+import org.ipea.r5r.R5.FloatingCatchment;
 import org.ipea.r5r.R5.R5TravelTimeComputer;
 import org.ipea.r5r.RDataFrame;
 import org.ipea.r5r.RoutingProperties;
+import org.ipea.r5r.Utils.Utils;
 
-import java.lang.reflect.Field;
 import java.text.ParseException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 
 public class AccessibilityEstimator extends R5Process {
 
-    private DecayFunction decayFunction;
+    private String[] decayFunctionNames;
+    private double[] decayValues;
+    private DecayFunction[] decayFunctions;
+
+    // decay columns are only reported when several decay functions are evaluated
+    private boolean reportDecayFunctions = false;
+
+    // weight tables of all decay functions and cutoffs, built once per run
+    private DecayWeights decayWeights;
 
     public void setDecayFunction(String decayFunction, double decayValue) {
-        decayFunction = decayFunction.toUpperCase();
-        if (decayFunction.equals("STEP")) { this.decayFunction = new StepDecayFunction(); }
-        if (decayFunction.equals("EXPONENTIAL")) { this.decayFunction = new ExponentialDecayFunction(); }
+        setDecayFunctions(new String[] {decayFunction}, new double[] {decayValue});
+        this.reportDecayFunctions = false;
+    }
+
+    public void setDecayFunctions(String[] decayFunctions, double[] decayValues) {
+        if (decayFunctions.length != decayValues.length) {
+            throw new IllegalArgumentException("Each decay function must have one decay value.");
+        }
+
+        this.decayFunctionNames = new String[decayFunctions.length];
+        this.decayValues = decayValues;
+        this.decayFunctions = new DecayFunction[decayFunctions.length];
+        for (int d = 0; d < decayFunctions.length; d++) {
+            this.decayFunctionNames[d] = decayFunctions[d].toUpperCase();
+            this.decayFunctions[d] = Utils.buildDecayFunction(decayFunctions[d], decayValues[d]);
+            if (this.decayFunctions[d] == null) {
+                throw new IllegalArgumentException("Unknown decay function: " + decayFunctions[d]);
+            }
+        }
+        this.reportDecayFunctions = true;
+    }
 
-        if (decayFunction.equals("FIXED_EXPONENTIAL")) {
-            this.decayFunction = new FixedExponentialDecayFunction();
-            ((FixedExponentialDecayFunction) this.decayFunction).decayConstant = decayValue;
+    // gridded opportunities, aligned with the cells returned by R5RCore.getGrid(resolution); null for freeform ones
+    private Grid[] opportunityGrids = null;
+
+    // cells of the opportunity grids as destinations, linked once and shared by all origins
+    private WebMercatorGridPointSet gridDestinations = null;
+
+    /**
+     * Uses gridded opportunities as destinations, one grid per opportunity type. Counts are given per cell, in the
+     * order of the cells returned by R5RCore.getGrid(resolution). Destinations are then the cells of a web mercator
+     * grid point set at the same resolution, linked to the street network before routing.
+     */
+    public void setGridDestinations(int resolution, String[] opportunities, double[][] opportunityCounts) {
+        this.opportunities = opportunities;
+        this.opportunityGrids = new Grid[opportunities.length];
+
+        for (int o = 0; o < opportunities.length; o++) {
+            Grid grid = new Grid(resolution, transportNetwork.getEnvelope());
+            if (opportunityCounts[o].length != grid.featureCount()) {
+                throw new IllegalArgumentException("Opportunity counts of '" + opportunities[o] + "' have " +
+                        opportunityCounts[o].length + " cells, but the grid at resolution " + resolution + " has " + grid.featureCount() + ".");
+            }
+
+            for (int index = 0; index < grid.featureCount(); index++) {
+                int x = index % grid.extents.width;
+                int y = index / grid.extents.width;
+                grid.grid[x][y] = opportunityCounts[o][index];
+            }
+            opportunityGrids[o] = grid;
         }
-        if (decayFunction.equals("LINEAR")) {
-            this.decayFunction = new LinearDecayFunction();
-            ((LinearDecayFunction) this.decayFunction).widthMinutes = (int) decayValue;
+
+        this.nDestinations = opportunityGrids.length > 0 ? opportunityGrids[0].featureCount() : 0;
+        this.gridDestinations = opportunityGrids.length > 0 ? new WebMercatorGridPointSet(opportunityGrids[0].extents) : null;
+    }
+
+    // population at each origin, for floating catchment (competition-aware) accessibility; null otherwise
+    private double[] originPopulation = null;
+    private FloatingCatchment catchment = null;
+    private boolean catchmentDemandPass = false;
+
+    /**
+     * Makes accessibility competition-aware, with the two-step floating catchment area (2SFCA) method: opportunities
+     * at each destination are first divided by the population that reaches them, weighted by the decay function,
+     * and accessibility of each origin is then the decay-weighted sum of these supply-to-demand ratios.
+     *
+     * Origins are routed twice. The first pass accumulates demand on each destination, the second one computes
+     * accessibility from the ratios, so the travel time matrix is never held in memory.
+     */
+    public void setCompetition(double[] originPopulation) {
+        if (originPopulation.length != nOrigins) {
+            throw new IllegalArgumentException("Population must have one value per origin.");
         }
-        if (decayFunction.equals("LOGISTIC")) {
-            this.decayFunction = new LogisticDecayFunction();
-            ((LogisticDecayFunction) this.decayFunction).standardDeviationMinutes = decayValue;
+        this.originPopulation = originPopulation;
+    }
+
+    // population-weighted summaries by group of origins, reported instead of accessibility per origin; null otherwise
+    private AccessibilitySummary summary = null;
+    private String[] summaryGroups;
+    private double[] summaryWeights;
+
+    /**
+     * Summarizes accessibility by group of origins (e.g. zone and income group), weighted by the given origin
+     * weights, instead of returning it per origin. See runSummary().
+     */
+    public void setSummaryGroups(String[] originGroups, double[] originWeights) {
+        if (originGroups.length != nOrigins || originWeights.length != nOrigins) {
+            throw new IllegalArgumentException("Groups and weights must have one value per origin.");
         }
-        this.decayFunction.prepare();
+        this.summaryGroups = originGroups;
+        this.summaryWeights = originWeights;
+    }
+
+    /**
+     * Runs accessibility and returns its population-weighted summaries per group: total weight, weighted mean, Gini
+     * index, Palma ratio, and shares of accessibility held by the bottom 40% and the top 10% of the population.
+     * Accessibility of each origin is recorded as the origin completes, without building per-origin tables.
+     */
+    public RDataFrame runSummary() throws ExecutionException, InterruptedException {
+        int nIndicators = opportunities.length * decayFunctions.length * routingProperties.percentiles.length * routingProperties.cutoffs.length;
+        summary = new AccessibilitySummary(summaryGroups, summaryWeights, nIndicators);
+
+        run();
+
+        return buildSummaryDataFrame();
     }
 
     public AccessibilityEstimator(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
         super(threadPool, transportNetwork, routingProperties);
     }
 
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        decayWeights = new DecayWeights(decayFunctionNames, decayValues, decayFunctions, routingProperties.cutoffs, maxTripDuration);
+
+        if (originPopulation != null) {
+            buildDestinationPointSet();
+            catchment = new FloatingCatchment(getOpportunityPointSets(), decayWeights, routingProperties.percentiles.length, nDestinations);
+
+            // first pass only accumulates demand on each destination, without output or progress
+            catchmentDemandPass = true;
+            reportProgress = false;
+            super.run();
+            reportProgress = true;
+            catchmentDemandPass = false;
+
+            catchment.computeRatios();
+        }
+
+        return super.run();
+    }
+
     @Override
     protected RDataFrame runProcess(int index) throws ParseException {
         RegionalTask request = buildRequest(index);
 
-        TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
-        OneOriginResult travelTimeResults = computer.computeTravelTimes();
+        if (catchmentDemandPass) {
+            CatchmentDemandReducer demand = new CatchmentDemandReducer(catchment, routingProperties.percentiles, originPopulation[index]);
+
+            R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+            if (gridDestinations != null) computer.setDestinations(gridDestinations);
+            computer.addTargetReducer(demand);
+            computer.computeTravelTimes();
+
+            demand.commit();
+            return null;
+        }
+
+        AccessibilityReducer accessibility = catchment != null ?
+                new CatchmentAccessibilityReducer(catchment, routingProperties.percentiles) :
+                new AccessibilityReducer(getOpportunityPointSets(), decayWeights, routingProperties.percentiles);
+
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        if (gridDestinations != null) computer.setDestinations(gridDestinations);
+        computer.addTargetReducer(accessibility);
+        computer.computeTravelTimes();
+
+        if (summary != null) {
+            recordSummary(index, accessibility);
+            return null;
+        }
+
         RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
-        populateDataFrame(travelTimeResults, travelTimesTable);
+        populateDataFrame(accessibility, travelTimesTable);
 
         if (travelTimesTable.nRow() > 0) {
             return travelTimesTable;
@@ -57,43 +207,122 @@ public class AccessibilityEstimator extends R5Process {
         }
     }
 
-    private void populateDataFrame(OneOriginResult travelTimeResults, RDataFrame travelTimesTable) {
-        // Create Field object
-        Field privateField = null;
-        try {
-            privateField = travelTimeResults.accessibility.getClass().getDeclaredField("cumulativeOpportunities");
-
-            // Set the accessibility as true
-            privateField.setAccessible(true);
+    protected PointSet[] getOpportunityPointSets() {
+        return opportunityGrids != null ? opportunityGrids : destinationPoints;
+    }
 
-            double[][][] accessibility = (double[][][]) privateField.get(travelTimeResults.accessibility);
+    @Override
+    protected void buildDestinationPointSet() throws ExecutionException, InterruptedException {
+        if (opportunityGrids != null) {
+            // grid cells need no freeform point set, only their own linkage (found in R5's linkage cache if linked
+            // before, e.g. in the first pass of floating catchment runs)
+            linkDestinationPointSet(gridDestinations);
+        } else if (destinationPoints == null) {
+            // point sets are kept between the two passes of floating catchment runs
+            super.buildDestinationPointSet();
+        }
+    }
 
-            int nOpportunities = this.opportunities.length;
-            int nPercentiles = routingProperties.percentiles.length;
-            int nCutoffs = routingProperties.cutoffs.length;
+    private void populateDataFrame(AccessibilityReducer accessibility, RDataFrame travelTimesTable) {
+        int nOpportunities = this.opportunities.length;
+        int nPercentiles = routingProperties.percentiles.length;
+        int nCutoffs = routingProperties.cutoffs.length;
 
-            for (int o = 0; o < nOpportunities; o++) {
+        for (int o = 0; o < nOpportunities; o++) {
+            for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
                 for (int p = 0; p < nPercentiles; p++) {
                     for (int c = 0; c < nCutoffs; c++) {
                         travelTimesTable.append();
                         travelTimesTable.set("opportunity", this.opportunities[o]);
+                        if (reportDecayFunctions) {
+                            travelTimesTable.set("decay_function", decayWeights.getName(d));
+                            travelTimesTable.set("decay_value", decayWeights.getValue(d));
+                        }
                         travelTimesTable.set("percentile", routingProperties.percentiles[p]);
                         travelTimesTable.set("cutoff", routingProperties.cutoffs[c]);
-                        travelTimesTable.set("accessibility", accessibility[o][p][c]);
+                        travelTimesTable.set("accessibility", accessibility.getAccessibility(o, d, p, c));
                     }
                 }
             }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
         }
     }
 
+    private int indicatorIndex(int opportunity, int decayFunction, int percentile, int cutoff) {
+        int nPercentiles = routingProperties.percentiles.length;
+        int nCutoffs = routingProperties.cutoffs.length;
+        return ((opportunity * decayWeights.nDecayFunctions() + decayFunction) * nPercentiles + percentile) * nCutoffs + cutoff;
+    }
+
+    private void recordSummary(int origin, AccessibilityReducer accessibility) {
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+                for (int p = 0; p < routingProperties.percentiles.length; p++) {
+                    for (int c = 0; c < routingProperties.cutoffs.length; c++) {
+                        summary.record(origin, indicatorIndex(o, d, p, c), accessibility.getAccessibility(o, d, p, c));
+                    }
+                }
+            }
+        }
+    }
+
+    private RDataFrame buildSummaryDataFrame() {
+        RDataFrame summaryTable = new RDataFrame();
+        summaryTable.addStringColumn("group", "");
+        summaryTable.addStringColumn("opportunity", "");
+        if (reportDecayFunctions) {
+            summaryTable.addStringColumn("decay_function", "");
+            summaryTable.addDoubleColumn("decay_value", 0.0);
+        }
+        summaryTable.addIntegerColumn("percentile", 0);
+        summaryTable.addIntegerColumn("cutoff", 0);
+        summaryTable.addDoubleColumn("population", 0.0);
+        summaryTable.addDoubleColumn("mean", 0.0);
+        summaryTable.addDoubleColumn("gini", 0.0);
+        summaryTable.addDoubleColumn("palma", 0.0);
+        summaryTable.addDoubleColumn("bottom_40_share", 0.0);
+        summaryTable.addDoubleColumn("top_10_share", 0.0);
+
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+                for (int p = 0; p < routingProperties.percentiles.length; p++) {
+                    for (int c = 0; c < routingProperties.cutoffs.length; c++) {
+                        double[][] groupSummaries = summary.summarize(indicatorIndex(o, d, p, c));
+
+                        for (int group = 0; group < summary.nGroups(); group++) {
+                            summaryTable.append();
+                            summaryTable.set("group", summary.getGroupName(group));
+                            summaryTable.set("opportunity", opportunities[o]);
+                            if (reportDecayFunctions) {
+                                summaryTable.set("decay_function", decayWeights.getName(d));
+                                summaryTable.set("decay_value", decayWeights.getValue(d));
+                            }
+                            summaryTable.set("percentile", routingProperties.percentiles[p]);
+                            summaryTable.set("cutoff", routingProperties.cutoffs[c]);
+                            summaryTable.set("population", groupSummaries[group][0]);
+                            summaryTable.set("mean", groupSummaries[group][1]);
+                            summaryTable.set("gini", groupSummaries[group][2]);
+                            summaryTable.set("palma", groupSummaries[group][3]);
+                            summaryTable.set("bottom_40_share", groupSummaries[group][4]);
+                            summaryTable.set("top_10_share", groupSummaries[group][5]);
+                        }
+                    }
+                }
+            }
+        }
+
+        return summaryTable;
+    }
+
     @Override
     protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
         // Build return table
         RDataFrame travelTimesTable = new RDataFrame(nRows);
         travelTimesTable.addStringColumn("id", fromId);
         travelTimesTable.addStringColumn("opportunity", "");
+        if (reportDecayFunctions) {
+            travelTimesTable.addStringColumn("decay_function", "");
+            travelTimesTable.addDoubleColumn("decay_value", 0.0);
+        }
         travelTimesTable.addIntegerColumn("percentile", 0);
         travelTimesTable.addIntegerColumn("cutoff", 0);
         travelTimesTable.addDoubleColumn("accessibility", 0.0);
@@ -106,13 +335,24 @@ public class AccessibilityEstimator extends R5Process {
         RegionalTask request = super.buildRequest(index);
 
         request.destinationPointSetKeys = this.opportunities;
-        request.destinationPointSets = this.destinationPoints;
+        if (opportunityGrids != null) {
+            request.destinationPointSets = this.opportunityGrids;
+
+            WebMercatorExtents extents = opportunityGrids[0].extents;
+            request.zoom = extents.zoom;
+            request.west = extents.west;
+            request.north = extents.north;
+            request.width = extents.width;
+            request.height = extents.height;
+        } else {
+            request.destinationPointSets = this.destinationPoints;
+        }
 
+        // accessibility is computed by r5r's reducers, so R5 keeps neither accessibility nor a travel time matrix
         request.percentiles = this.routingProperties.percentiles;
-        request.recordAccessibility = true;
+        request.recordAccessibility = false;
         request.recordTimes = false;
         request.includePathResults = false;
-        request.decayFunction = this.decayFunction;
 
         request.cutoffsMinutes = routingProperties.cutoffs;
 
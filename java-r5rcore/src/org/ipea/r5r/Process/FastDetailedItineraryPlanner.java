@@ -2,6 +2,10 @@ package org.ipea.r5r.Process;
 
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.ipea.r5r.Planner.StreetSearchCache;
+import org.ipea.r5r.Planner.TransferPathCache;
 import org.ipea.r5r.Planner.Trip;
 import org.ipea.r5r.Planner.TripPlanner;
 import org.ipea.r5r.RDataFrame;
@@ -10,7 +14,11 @@ import org.ipea.r5r.Utils.Utils;
 import org.slf4j.LoggerFactory;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -21,12 +29,31 @@ public class FastDetailedItineraryPlanner extends R5Process {
     private boolean dropItineraryGeometry = false;
     private boolean shortestPath = false;
 
+    // access and egress searches, and walking paths of transfers, are shared by all OD pairs of a run
+    private final StreetSearchCache streetSearchCache;
+    private final TransferPathCache transferPathCache;
+
     private boolean hasFares() {
         return routingProperties.fareCalculator != null;
     }
 
     public FastDetailedItineraryPlanner(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
         super(threadPool, transportNetwork, routingProperties);
+        this.streetSearchCache = new StreetSearchCache(transportNetwork);
+        this.transferPathCache = new TransferPathCache(transportNetwork);
+    }
+
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        if (Utils.preloadTransferPaths && nOrigins > 0) {
+            try {
+                transferPathCache.preload(r5rThreadPool, buildRequest(0));
+            } catch (ParseException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return super.run();
     }
 
     public void dropItineraryGeometry() {
@@ -34,6 +61,34 @@ public class FastDetailedItineraryPlanner extends R5Process {
     }
     public void shortestPathOnly() { shortestPath = true; }
 
+    // OD pairs grouped by origin, routed with one McRAPTOR run per origin; null when pairs are routed one by one
+    private int[][] pairsByOrigin = null;
+    private int[] originOfPair;
+
+    /**
+     * Routes all OD pairs that share an origin together, with one access search and one McRAPTOR run per origin.
+     * Each origin is processed at the index of its first pair. See TripPlanner.planToDestinations().
+     */
+    public void groupByOrigin() {
+        Map<String, Integer> originIndex = new HashMap<>();
+        List<TIntList> pairs = new ArrayList<>();
+        originOfPair = new int[nOrigins];
+
+        for (int pair = 0; pair < nOrigins; pair++) {
+            String originKey = fromIds[pair] + "|" + fromLats[pair] + "|" + fromLons[pair];
+            Integer origin = originIndex.get(originKey);
+            if (origin == null) {
+                origin = pairs.size();
+                originIndex.put(originKey, origin);
+                pairs.add(new TIntArrayList());
+            }
+            pairs.get(origin).add(pair);
+            originOfPair[pair] = origin;
+        }
+
+        pairsByOrigin = pairs.stream().map(TIntList::toArray).toArray(int[][]::new);
+    }
+
     @Override
     protected RDataFrame runProcess(int index) throws ParseException {
         RegionalTask request = buildRequest(index);
@@ -41,7 +96,29 @@ public class FastDetailedItineraryPlanner extends R5Process {
         TripPlanner computer = new TripPlanner(transportNetwork, request);
         computer.setOD(fromIds[index], toIds[index]);
         computer.setShortestPath(this.shortestPath);
-        List<Trip> trips = computer.plan();
+        computer.setStreetSearchCache(this.streetSearchCache);
+        computer.setTransferPathCache(this.transferPathCache);
+
+        List<Trip> trips;
+        if (pairsByOrigin != null) {
+            int[] pairs = pairsByOrigin[originOfPair[index]];
+            // the group is routed at its first pair
+            if (pairs[0] != index) return null;
+
+            String[] groupToIds = new String[pairs.length];
+            double[] groupToLats = new double[pairs.length];
+            double[] groupToLons = new double[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                groupToIds[i] = toIds[pairs[i]];
+                groupToLats[i] = toLats[pairs[i]];
+                groupToLons[i] = toLons[pairs[i]];
+            }
+
+            trips = new ArrayList<>();
+            computer.planToDestinations(groupToIds, groupToLats, groupToLons).forEach(trips::addAll);
+        } else {
+            trips = computer.plan();
+        }
 
         RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
         try {
@@ -67,6 +144,11 @@ public class FastDetailedItineraryPlanner extends R5Process {
 
         AtomicInteger tripId = new AtomicInteger(0);
         trips.forEach(trip -> {
+            // options are numbered per OD pair
+            if (tripId.get() > 0 && !trip.getToId().equals(travelTimesTable.get("to_id").get(travelTimesTable.nRow() - 1))) {
+                tripId.set(0);
+            }
+
             travelTimesTable.append();
 
             travelTimesTable.set("from_id", trip.getFromId());
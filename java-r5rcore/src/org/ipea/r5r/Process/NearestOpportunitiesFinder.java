@@ -0,0 +1,97 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.ipea.r5r.R5.NearestOpportunitiesReducer;
+import org.ipea.r5r.R5.R5TravelTimeComputer;
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+
+import java.text.ParseException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds, for each origin, the k nearest destinations in travel time that have each type of opportunity (e.g. the
+ * three closest hospitals). Nearest destinations are kept during propagation, so output has at most k rows per
+ * origin, opportunity type and percentile.
+ */
+public class NearestOpportunitiesFinder extends R5Process {
+
+    private int k = 1;
+
+    public void setK(int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1.");
+        this.k = k;
+    }
+
+    public NearestOpportunitiesFinder(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
+        super(threadPool, transportNetwork, routingProperties);
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        RegionalTask request = buildRequest(index);
+
+        NearestOpportunitiesReducer nearest = new NearestOpportunitiesReducer(destinationPoints, routingProperties.percentiles, k, maxTripDuration);
+
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        computer.addTargetReducer(nearest);
+        computer.computeTravelTimes();
+
+        RDataFrame nearestTable = buildDataFrameStructure(fromIds[index], 10);
+        populateDataFrame(nearest, nearestTable);
+
+        if (nearestTable.nRow() > 0) {
+            return nearestTable;
+        } else {
+            return null;
+        }
+    }
+
+    private void populateDataFrame(NearestOpportunitiesReducer nearest, RDataFrame nearestTable) {
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int p = 0; p < routingProperties.percentiles.length; p++) {
+                nearest.sort(o, p);
+
+                for (int rank = 0; rank < nearest.size(o, p); rank++) {
+                    nearestTable.append();
+                    nearestTable.set("opportunity", opportunities[o]);
+                    nearestTable.set("percentile", routingProperties.percentiles[p]);
+                    nearestTable.set("rank", rank + 1);
+                    nearestTable.set("to_id", toIds[nearest.getTarget(o, p, rank)]);
+                    nearestTable.set("travel_time", nearest.getTravelTime(o, p, rank) / 60);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame nearestTable = new RDataFrame(nRows);
+        nearestTable.addStringColumn("from_id", fromId);
+        nearestTable.addStringColumn("opportunity", "");
+        nearestTable.addIntegerColumn("percentile", 0);
+        nearestTable.addIntegerColumn("rank", 0);
+        nearestTable.addStringColumn("to_id", "");
+        nearestTable.addIntegerColumn("travel_time", 0);
+
+        return nearestTable;
+    }
+
+    @Override
+    protected RegionalTask buildRequest(int index) throws ParseException {
+        RegionalTask request = super.buildRequest(index);
+
+        // travel times are only reduced by the NearestOpportunitiesReducer, so R5 keeps no travel time matrix
+        request.percentiles = this.routingProperties.percentiles;
+        request.recordTimes = false;
+        request.recordAccessibility = false;
+        request.includePathResults = false;
+
+        request.destinationPointSetKeys = this.opportunities;
+        request.destinationPointSets = this.destinationPoints;
+
+        return request;
+    }
+}
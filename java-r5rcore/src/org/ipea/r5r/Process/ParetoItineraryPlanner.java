@@ -2,6 +2,7 @@ package org.ipea.r5r.Process;
 
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.transit.TransportNetwork;
+import org.ipea.r5r.Planner.StreetSearchCache;
 import org.ipea.r5r.R5.R5ParetoServer;
 import org.ipea.r5r.RDataFrame;
 import org.ipea.r5r.RoutingProperties;
@@ -16,8 +17,12 @@ public class ParetoItineraryPlanner extends R5Process {
 
     public static boolean travelAllowanceActive = true;
 
+    // access and egress searches are shared by all OD pairs of a run
+    private final StreetSearchCache streetSearchCache;
+
     public ParetoItineraryPlanner(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
         super(threadPool, transportNetwork, routingProperties);
+        this.streetSearchCache = new StreetSearchCache(transportNetwork);
     }
 
     @Override
@@ -30,6 +35,7 @@ public class ParetoItineraryPlanner extends R5Process {
         RegionalTask request = buildRequest(index);
 
         R5ParetoServer computer = new R5ParetoServer(request, transportNetwork);
+        computer.setStreetSearchCache(streetSearchCache);
         R5ParetoServer.ParetoReturn travelTimeResults = computer.handle();
 
         RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
@@ -1,13 +1,17 @@
 package org.ipea.r5r.Process;
 
 import com.conveyal.r5.analyst.FreeFormPointSet;
+import com.conveyal.r5.analyst.PointSet;
 import com.conveyal.r5.analyst.cluster.PathResult;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import org.ipea.r5r.Fares.RuleBasedInRoutingFareCalculator;
 import org.ipea.r5r.RDataFrame;
 import org.ipea.r5r.RoutingProperties;
@@ -19,6 +23,7 @@ import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -45,6 +50,12 @@ public abstract class R5Process {
 
     protected FreeFormPointSet[] destinationPoints;
 
+    // for paired origin-destination inputs: indices of the destinations paired with each (unique) origin
+    protected int[][] destinationsByOrigin;
+
+    // false for internal passes whose results are not returned, so their progress is not printed
+    protected boolean reportProgress = true;
+
     protected EnumSet<LegMode> directModes;
     protected EnumSet<TransitModes> transitModes;
     protected EnumSet<LegMode> accessModes;
@@ -68,6 +79,18 @@ public abstract class R5Process {
     }
 
     public RDataFrame run() throws ExecutionException, InterruptedException {
+        List<RDataFrame> processResults = runOrigins();
+
+        RDataFrame results = mergeResults(processResults);
+
+        return results;
+    }
+
+    /**
+     * Routes all origins in parallel and returns their tables without merging them. Processes that keep their
+     * results elsewhere, like sparse travel time matrices, call this instead of run().
+     */
+    protected List<RDataFrame> runOrigins() throws ExecutionException, InterruptedException {
         buildDestinationPointSet();
         int[] requestIndices = IntStream.range(0, nOrigins).toArray();
         AtomicInteger totalProcessed = new AtomicInteger(1);
@@ -78,54 +101,89 @@ public abstract class R5Process {
                         filter(Objects::nonNull).
                         collect(Collectors.toList())).get();
 
-        if (!Utils.verbose & Utils.progress) {
+        if (!Utils.verbose & Utils.progress & reportProgress) {
             System.out.print(".. DONE!\n");
         }
 
-        RDataFrame results = mergeResults(processResults);
-
-        return results;
+        return processResults;
     }
 
-    protected void buildDestinationPointSet() {
+    protected void buildDestinationPointSet() throws ExecutionException, InterruptedException {
         destinationPoints = new FreeFormPointSet[this.opportunities.length];
 
+        // build one point set per opportunity in parallel
+        List<ForkJoinTask<?>> pointSetTasks = new ArrayList<>();
         for (int i = 0; i < this.opportunities.length; i++) {
-            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            DataOutputStream pointStream = new DataOutputStream(dataStream);
+            final int opportunityIndex = i;
+            pointSetTasks.add(r5rThreadPool.submit(() -> {
+                destinationPoints[opportunityIndex] = buildFreeFormPointSet(opportunityCounts[opportunityIndex]);
+            }));
+        }
+        for (ForkJoinTask<?> task : pointSetTasks) task.get();
 
-            try {
-                pointStream.writeInt(toIds.length);
-                for (String toId : toIds) {
-                    pointStream.writeUTF(toId);
-                }
-                for (double toLat : toLats) {
-                    pointStream.writeDouble(toLat);
-                }
-                for (double toLon : toLons) {
-                    pointStream.writeDouble(toLon);
-                }
-                for (int opportunity : opportunityCounts[i]) {
-                    pointStream.writeDouble(opportunity);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        // All opportunity point sets share the same coordinates, and R5 only links the first one (the remaining ones
+        // just carry opportunity counts), so linking the others would be wasted work.
+        if (destinationPoints.length > 0) linkDestinationPointSet(destinationPoints[0]);
+    }
 
-            ByteArrayInputStream pointsInput = new ByteArrayInputStream(dataStream.toByteArray());
+    private FreeFormPointSet buildFreeFormPointSet(int[] counts) {
+        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+        DataOutputStream pointStream = new DataOutputStream(dataStream);
 
-            try {
-                destinationPoints[i] = new FreeFormPointSet(pointsInput);
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            pointStream.writeInt(toIds.length);
+            for (String toId : toIds) {
+                pointStream.writeUTF(toId);
             }
-
-            if (!this.directModes.isEmpty()) {
-                for (LegMode mode : this.directModes) {
-                    transportNetwork.linkageCache.getLinkage(destinationPoints[i], transportNetwork.streetLayer, StreetMode.valueOf(mode.toString()));
-                }
+            for (double toLat : toLats) {
+                pointStream.writeDouble(toLat);
+            }
+            for (double toLon : toLons) {
+                pointStream.writeDouble(toLon);
             }
+            for (int opportunity : counts) {
+                pointStream.writeDouble(opportunity);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+
+        ByteArrayInputStream pointsInput = new ByteArrayInputStream(dataStream.toByteArray());
+
+        try {
+            return new FreeFormPointSet(pointsInput);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Links the destinations to the street network for the direct and egress modes, and builds the egress cost tables,
+     * before routing starts.
+     */
+    protected void linkDestinationPointSet(PointSet destinations) throws ExecutionException, InterruptedException {
+        if (destinations == null) return;
+
+        EnumSet<StreetMode> linkageModes = EnumSet.noneOf(StreetMode.class);
+        linkageModes.addAll(LegMode.toStreetModeSet(this.directModes));
+
+        EnumSet<StreetMode> egressStreetModes = EnumSet.noneOf(StreetMode.class);
+        if (!this.transitModes.isEmpty()) {
+            egressStreetModes.addAll(LegMode.toStreetModeSet(this.egressModes));
+            linkageModes.addAll(egressStreetModes);
+        }
+
+        // Link each mode in its own task. R5 splits the points of each linkage (and its egress cost tables) across
+        // parallel streams, which run inside r5rThreadPool because they are started from one of its workers.
+        List<ForkJoinTask<?>> linkageTasks = new ArrayList<>();
+        for (StreetMode mode : linkageModes) {
+            linkageTasks.add(r5rThreadPool.submit(() -> {
+                LinkedPointSet linkage = transportNetwork.linkageCache.getLinkage(destinations, transportNetwork.streetLayer, mode);
+                if (egressStreetModes.contains(mode)) linkage.getEgressCostTable();
+            }));
+        }
+        for (ForkJoinTask<?> task : linkageTasks) task.get();
     }
 
     public void setDestinations(String[] toIds, double[] toLats, double[] toLons) {
@@ -158,6 +216,56 @@ public abstract class R5Process {
         this.nOrigins = fromIds.length;
     }
 
+    /**
+     * Sets explicit origin-destination pairs, given as aligned arrays. Repeated origins and destinations are merged,
+     * so each origin is routed only once for all of its paired destinations.
+     */
+    public void setODPairs(String[] fromIds, double[] fromLats, double[] fromLons,
+                           String[] toIds, double[] toLats, double[] toLons) {
+        Map<String, Integer> originIndex = new HashMap<>();
+        Map<String, Integer> destinationIndex = new HashMap<>();
+        TIntList firstPairOfOrigin = new TIntArrayList();
+        TIntList firstPairOfDestination = new TIntArrayList();
+        List<TIntList> pairedDestinations = new ArrayList<>();
+
+        for (int pair = 0; pair < fromIds.length; pair++) {
+            String originKey = fromIds[pair] + "|" + fromLats[pair] + "|" + fromLons[pair];
+            String destinationKey = toIds[pair] + "|" + toLats[pair] + "|" + toLons[pair];
+
+            Integer origin = originIndex.get(originKey);
+            if (origin == null) {
+                origin = firstPairOfOrigin.size();
+                originIndex.put(originKey, origin);
+                firstPairOfOrigin.add(pair);
+                pairedDestinations.add(new TIntArrayList());
+            }
+
+            Integer destination = destinationIndex.get(destinationKey);
+            if (destination == null) {
+                destination = firstPairOfDestination.size();
+                destinationIndex.put(destinationKey, destination);
+                firstPairOfDestination.add(pair);
+            }
+
+            pairedDestinations.get(origin).add(destination);
+        }
+
+        int[] originPairs = firstPairOfOrigin.toArray();
+        int[] destinationPairs = firstPairOfDestination.toArray();
+
+        setOrigins(Arrays.stream(originPairs).mapToObj(p -> fromIds[p]).toArray(String[]::new),
+                Arrays.stream(originPairs).mapToDouble(p -> fromLats[p]).toArray(),
+                Arrays.stream(originPairs).mapToDouble(p -> fromLons[p]).toArray());
+        setDestinations(Arrays.stream(destinationPairs).mapToObj(p -> toIds[p]).toArray(String[]::new),
+                Arrays.stream(destinationPairs).mapToDouble(p -> toLats[p]).toArray(),
+                Arrays.stream(destinationPairs).mapToDouble(p -> toLons[p]).toArray());
+
+        this.destinationsByOrigin = new int[nOrigins][];
+        for (int origin = 0; origin < nOrigins; origin++) {
+            this.destinationsByOrigin[origin] = IntStream.of(pairedDestinations.get(origin).toArray()).sorted().distinct().toArray();
+        }
+    }
+
     public void setModes(String directModes, String accessModes, String transitModes, String egressModes) {
         this.directModes = Utils.setLegModes(directModes);
         this.accessModes = Utils.setLegModes(accessModes);
@@ -189,12 +297,12 @@ public abstract class R5Process {
             }
 
             if (Utils.saveOutputToCsv & results != null) {
-                String filename = Utils.outputCsvFolder + "/from_" + fromIds[index] + ".csv";
+                String filename = Utils.outputCsvFolder + "/" + getCsvFilename(index) + ".csv";
                 results.saveToCsv(filename);
                 results.clear();
             }
 
-            if (!Utils.verbose & Utils.progress) {
+            if (!Utils.verbose & Utils.progress & reportProgress) {
                 System.out.print("\r" + totalProcessed.getAndIncrement() + " out of " + nOrigins + " origins processed.");
             }
         } catch (ParseException | FileNotFoundException e) {
@@ -204,10 +312,14 @@ public abstract class R5Process {
         return Utils.saveOutputToCsv ? null : results;
     }
 
+    protected String getCsvFilename(int index) {
+        return "from_" + fromIds[index];
+    }
+
     protected abstract RDataFrame runProcess(int index) throws ParseException;
 
     private RDataFrame mergeResults(List<RDataFrame> processResults) {
-        if (!Utils.verbose & Utils.progress) {
+        if (!Utils.verbose & Utils.progress & reportProgress) {
             System.out.print("Consolidating results...");
         }
 
@@ -235,7 +347,7 @@ public abstract class R5Process {
         );
         mergedDataFrame.updateRowCount();
 
-        if (!Utils.verbose & Utils.progress) {
+        if (!Utils.verbose & Utils.progress & reportProgress) {
             System.out.print(" DONE!\n");
         }
 
@@ -1,104 +1,224 @@
 package org.ipea.r5r.Process;
 
 import com.conveyal.r5.OneOriginResult;
-import com.conveyal.r5.analyst.TravelTimeComputer;
-import com.conveyal.r5.analyst.cluster.PathResult;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
-import com.conveyal.r5.analyst.cluster.TravelTimeResult;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.PointSetTimes;
+import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.TransportNetwork;
-import com.conveyal.r5.transit.path.RouteSequence;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import org.ipea.r5r.R5.PathRecorder;
 import org.ipea.r5r.R5.R5TravelTimeComputer;
+import org.ipea.r5r.R5.RouteSequenceDictionary;
 import org.ipea.r5r.RDataFrame;
 import org.ipea.r5r.RoutingProperties;
+import org.ipea.r5r.SparseTravelTimeMatrix;
 import org.ipea.r5r.Utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Field;
 import java.text.ParseException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
-
-import static com.google.common.base.Preconditions.checkState;
+import java.util.stream.IntStream;
 
 public class TravelTimeMatrixComputer extends R5Process {
 
-    class PathBreakdown {
-        String departureTime;
+    private static final Logger LOG = LoggerFactory.getLogger(TravelTimeMatrixComputer.class);
 
-        public double roundTo1Place(double value) {
-            return Math.round(value * 10.0) / 10.0;
-        }
+    // true when routing backwards from destinations; origins and destinations are swapped in that case
+    private boolean reverseSearch = false;
 
-        public double getAccessTime() {
-            return roundTo1Place(accessTime);
-        }
+    // when set, travel times are stored in this compact matrix instead of data.frame rows
+    private SparseTravelTimeMatrix sparseMatrix = null;
 
-        public double getWaitTime() {
-            return roundTo1Place(waitTime);
-        }
+    // route sequences of the paths recorded for expanded travel time matrices, shared by all origins of a run
+    private RouteSequenceDictionary routeSequences = null;
 
-        public double getRideTime() {
-            return roundTo1Place(rideTime);
-        }
+    // when true, expanded travel times are run-length compressed over departure minutes (see runCompressed)
+    private boolean compressedOutput = false;
 
-        public double getTransferTime() {
-            return roundTo1Place(transferTime);
-        }
+    // optional departure windows (start in seconds from midnight) and their names, routed in a single pass
+    private int[] departureWindows = null;
+    private String[] periods = null;
+
+    // optional list of departure dates, routed in a single pass
+    private LocalDate[] departureDates = null;
+    private String[] departureDateStrings = null;
 
-        public double getEgressTime() {
-            return roundTo1Place(egressTime);
+    // route sequence id of paths that do not use transit
+    private static final int DIRECT_ROUTE_SEQUENCE = -1;
+
+    public TravelTimeMatrixComputer(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
+        super(threadPool, transportNetwork, routingProperties);
+    }
+
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        // the fare-aware router does not record paths, so expanded results would show every transit trip as direct
+        if (isExpanded() && sparseMatrix == null && routingProperties.fareCalculator != null) {
+            throw new IllegalArgumentException("Expanded travel time matrices are not available with fare calculations.");
         }
 
-        public double getTotalTime() {
-            return roundTo1Place(totalTime);
+        routeSequences = new RouteSequenceDictionary(transportNetwork.transitLayer);
+
+        if (routingProperties.reverseSearch) {
+            // reverse routing is a single street search per destination, so it cannot record transit paths, OD
+            // pairs, departure windows or dates. Fail instead of silently routing from every origin
+            if (!transitModes.isEmpty() || isExpanded() || destinationsByOrigin != null || sparseMatrix != null || departureWindows != null || departureDates != null) {
+                throw new IllegalArgumentException("Reverse search is only available for regular travel time matrices without transit.");
+            }
+
+            if (nDestinations < nOrigins) {
+                // route from each destination and propagate to all origins: swap roles before building point sets
+                swapOriginsAndDestinations();
+                reverseSearch = true;
+            }
         }
 
-        public double getCombinedTravelTime() {
-            return roundTo1Place(getAccessTime() + getWaitTime() + getRideTime() + getTransferTime() + getEgressTime());
+        return super.run();
+    }
+
+    /**
+     * Computes the regular travel time matrix into a SparseTravelTimeMatrix, holding only the reached destinations
+     * of each origin with 16-bit minutes, instead of building a data.frame with one row per origin-destination pair.
+     */
+    public SparseTravelTimeMatrix runSparse() throws ExecutionException, InterruptedException {
+        if (routingProperties.reverseSearch) {
+            throw new IllegalArgumentException("Reverse search is only available for regular travel time matrices without transit.");
+        }
+        // rows are written straight into the matrix, so there are no per-origin tables to save
+        if (Utils.saveOutputToCsv) {
+            throw new IllegalArgumentException("Sparse travel time matrices cannot be saved to CSV files.");
+        }
+        if (routingProperties.expandedTravelTimes) {
+            LOG.warn("Expanded travel times are not available in sparse travel time matrices. Returning percentiles only.");
+        }
+        if (departureWindows != null || departureDates != null) {
+            LOG.warn("Sparse travel time matrices hold a single departure date and window. Using the first ones.");
         }
 
-        double accessTime;
-        double waitTime;
-        double rideTime;
-        double transferTime;
-        double egressTime;
-        double totalTime;
+        // rows are filled by runProcess, so the empty per-origin results are not merged into a data.frame
+        sparseMatrix = new SparseTravelTimeMatrix(fromIds, toIds, routingProperties.percentiles);
+        runOrigins();
 
-        String routes;
-        int nRides;
+        SparseTravelTimeMatrix result = sparseMatrix;
+        sparseMatrix = null;
+        return result;
+    }
+
+    /**
+     * Computes the expanded travel time matrix in compressed form. Consecutive departure minutes with the same route
+     * sequence and times are merged into one row with departure_start and departure_end (seconds from midnight), and
+     * times are integer seconds. Route strings are returned once, in a second table keyed by route_sequence.
+     */
+    public List<RDataFrame> runCompressed() throws ExecutionException, InterruptedException {
+        compressedOutput = true;
+
+        List<RDataFrame> results = new ArrayList<>();
+        results.add(run());
+        results.add(buildRouteSequenceTable());
+
+        return results;
+    }
 
-        public void unreachable() {
-            this.departureTime = "";
+    /**
+     * Computes travel times for several departure windows in the same run, each starting at one of the given
+     * departure times and lasting timeWindowSize minutes. Origins are snapped and their access searches run only
+     * once; transit routing and propagation are repeated for each window. Results get a 'period' column.
+     */
+    public void setDepartureWindows(String[] periods, String[] departureTimes) throws ParseException {
+        if (periods.length != departureTimes.length) {
+            throw new IllegalArgumentException("Each departure window must have one period name.");
+        }
 
-            this.accessTime = 0;
-            this.waitTime = 0;
-            this.rideTime = 0;
-            this.transferTime = 0;
-            this.egressTime = 0;
-            this.totalTime = Integer.MAX_VALUE;
+        this.periods = periods;
+        this.departureWindows = new int[departureTimes.length];
+        for (int w = 0; w < departureTimes.length; w++) {
+            this.departureWindows[w] = Utils.getSecondsFromMidnight(departureTimes[w]);
+        }
+    }
 
-            this.routes = directModes.toString();
-            this.nRides = 0;
+    /**
+     * Computes travel times for several departure dates in the same run (e.g. a weekday, a Saturday and a Sunday).
+     * Dates are parsed and checked against the transit calendars once. Origins are snapped and their access searches
+     * run once for all dates; only transit routing and propagation are repeated. Results get a 'date' column.
+     */
+    public void setDepartureDates(String[] dates) {
+        this.departureDateStrings = dates;
+        this.departureDates = new LocalDate[dates.length];
+
+        for (int d = 0; d < dates.length; d++) {
+            departureDates[d] = LocalDate.parse(dates[d]);
+
+            if (!transportNetwork.transitLayer.services.isEmpty()) {
+                LocalDate date = departureDates[d];
+                boolean anyServiceActive = transportNetwork.transitLayer.services.stream().anyMatch(service -> service.activeOn(date));
+                if (!anyServiceActive) {
+                    LOG.warn("No transit services are active on {}. Only non-transit travel times will be found for this date.", date);
+                }
+            }
         }
     }
 
-    private static final Logger LOG = LoggerFactory.getLogger(TravelTimeMatrixComputer.class);
+    private boolean isExpanded() {
+        return routingProperties.expandedTravelTimes || compressedOutput;
+    }
 
-    public TravelTimeMatrixComputer(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
-        super(threadPool, transportNetwork, routingProperties);
+    private void swapOriginsAndDestinations() {
+        String[] originIds = this.fromIds;
+        double[] originLats = this.fromLats;
+        double[] originLons = this.fromLons;
+
+        setOrigins(this.toIds, this.toLats, this.toLons);
+        setDestinations(originIds, originLats, originLons);
+    }
+
+    @Override
+    protected String getCsvFilename(int index) {
+        return reverseSearch ? "to_" + fromIds[index] : super.getCsvFilename(index);
     }
 
     @Override
     protected RDataFrame runProcess(int index) throws ParseException {
+        if (reverseSearch) return runReverseProcess(index);
+
         RegionalTask request = buildRequest(index);
 
-        TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
-        OneOriginResult travelTimeResults = computer.computeTravelTimes();
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        if (destinationsByOrigin != null) computer.setTargetSubset(destinationsByOrigin[index]);
+        if (isExpanded() && sparseMatrix == null) computer.recordPaths(routeSequences);
+
+        if (sparseMatrix != null) {
+            populateSparseRow(index, computer.computeTravelTimes(), getDestinations(index));
+            return null;
+        }
+
         RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
-        populateDataFrame(travelTimeResults, travelTimesTable);
+
+        // the access searches of the first date and window are reused by all the following ones
+        LocalDate[] dates = departureDates != null ? departureDates : new LocalDate[] {request.date};
+        int[] windows = departureWindows != null ? departureWindows : new int[] {request.fromTime};
+
+        for (int d = 0; d < dates.length; d++) {
+            computer.setDepartureDate(dates[d]);
+
+            for (int w = 0; w < windows.length; w++) {
+                int windowStart = windows[w];
+                computer.setDepartureWindow(windowStart, windowStart + routingProperties.timeWindowSize * 60);
+
+                int firstRow = travelTimesTable.nRow();
+                OneOriginResult travelTimeResults = computer.computeTravelTimes();
+                populateDataFrame(travelTimeResults, computer.getPathRecorder(), travelTimesTable, getDestinations(index), windowStart);
+
+                if (departureDates != null) fillColumn(travelTimesTable, "date", firstRow, departureDateStrings[d]);
+                if (departureWindows != null) fillColumn(travelTimesTable, "period", firstRow, periods[w]);
+            }
+        }
 
         if (travelTimesTable.nRow() > 0) {
             return travelTimesTable;
@@ -107,16 +227,88 @@ public class TravelTimeMatrixComputer extends R5Process {
         }
     }
 
-    private void populateDataFrame(OneOriginResult travelTimeResults, RDataFrame travelTimesTable) {
-        if (this.routingProperties.expandedTravelTimes) {
-            populateExpandedResults(travelTimeResults, travelTimesTable);
+    private static void fillColumn(RDataFrame table, String columnName, int firstRow, String value) {
+        List<Object> column = table.get(columnName);
+        for (int row = firstRow; row < table.nRow(); row++) {
+            column.set(row, value);
+        }
+    }
+
+    // destinations whose travel times are reported for an origin: its paired destinations, or all of them
+    private int[] getDestinations(int index) {
+        if (destinationsByOrigin != null) return destinationsByOrigin[index];
+        return IntStream.range(0, nDestinations).toArray();
+    }
+
+    /**
+     * Non-transit travel times from all origins to a single destination, found with one reverse street search per
+     * direct mode. Origins and destinations are swapped at this point, so 'index' refers to a destination, and
+     * the linked 'destination' point set holds the actual origins.
+     */
+    private RDataFrame runReverseProcess(int index) throws ParseException {
+        RegionalTask request = buildRequest(index);
+        request.reverseSearch = true;
+
+        PointSetTimes travelTimesFromOrigins = null;
+        for (StreetMode mode : LegMode.toStreetModeSet(directModes)) {
+            StreetRouter sr = new StreetRouter(transportNetwork.streetLayer);
+            sr.profileRequest = request;
+            sr.streetMode = mode;
+            sr.timeLimitSeconds = maxTripDuration * FastRaptorWorker.SECONDS_PER_MINUTE;
+            sr.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+
+            if (!sr.setOrigin(request.fromLat, request.fromLon)) {
+                LOG.info("Destination {} could not be linked to the street network for mode {}.", fromIds[index], mode);
+                continue;
+            }
+            sr.route();
+
+            LinkedPointSet linkedOrigins = transportNetwork.linkageCache.getLinkage(destinationPoints[0], transportNetwork.streetLayer, mode);
+            PointSetTimes pointSetTimes = linkedOrigins.eval(
+                    sr::getTravelTimeToVertex,
+                    (int) (request.getSpeedForMode(mode) * 1000),
+                    (int) (request.walkSpeed * 1000),
+                    sr.getOriginSplit()
+            );
+
+            travelTimesFromOrigins = PointSetTimes.minMerge(travelTimesFromOrigins, pointSetTimes);
+        }
+
+        if (travelTimesFromOrigins == null) return null;
+
+        RDataFrame travelTimesTable = buildDataFrameStructure("", 10);
+        for (int origin = 0; origin < nDestinations; origin++) {
+            int travelTimeSeconds = travelTimesFromOrigins.getTravelTimeToPoint(origin);
+            if (travelTimeSeconds == FastRaptorWorker.UNREACHED) continue;
+
+            int travelTimeMinutes = travelTimeSeconds / FastRaptorWorker.SECONDS_PER_MINUTE;
+            if (travelTimeMinutes > maxTripDuration) continue;
+
+            travelTimesTable.append();
+            travelTimesTable.set("from_id", toIds[origin]);
+            travelTimesTable.set("to_id", fromIds[index]);
+
+            // non-transit travel times do not vary, so all percentiles are equal
+            for (int p : this.routingProperties.percentiles) {
+                String ps = String.format("%02d", p);
+                travelTimesTable.set("travel_time_p" + ps, travelTimeMinutes);
+            }
+        }
+
+        return travelTimesTable.nRow() > 0 ? travelTimesTable : null;
+    }
+
+    private void populateDataFrame(OneOriginResult travelTimeResults, PathRecorder paths, RDataFrame travelTimesTable,
+                                   int[] destinations, int windowStart) {
+        if (isExpanded()) {
+            populateExpandedResults(travelTimeResults, paths, travelTimesTable, destinations, windowStart);
         } else {
-            populateRegularResults(travelTimeResults, travelTimesTable);
+            populateRegularResults(travelTimeResults, travelTimesTable, destinations);
         }
     }
 
-    private void populateRegularResults(OneOriginResult travelTimeResults, RDataFrame travelTimesTable) {
-        for (int destination = 0; destination < travelTimeResults.travelTimes.nPoints; destination++) {
+    private void populateRegularResults(OneOriginResult travelTimeResults, RDataFrame travelTimesTable, int[] destinations) {
+        for (int destination : destinations) {
             if (travelTimeResults.travelTimes.getValues()[0][destination] <= maxTripDuration) {
 
                 // add new row to data frame
@@ -137,160 +329,294 @@ public class TravelTimeMatrixComputer extends R5Process {
         }
     }
 
-    private void populateExpandedResults(OneOriginResult travelTimeResults, RDataFrame travelTimesTable) {
-        // extract travel paths, if required
-        Multimap<Integer, PathBreakdown>[] pathBreakdown = extractPathResults(travelTimeResults.paths, travelTimeResults.travelTimes);
+    private void populateSparseRow(int index, OneOriginResult travelTimeResults, int[] destinations) {
+        int[][] values = travelTimeResults.travelTimes.getValues();
+        int nPercentiles = this.routingProperties.percentiles.length;
 
-        for (int destination = 0; destination < travelTimeResults.travelTimes.nPoints; destination++) {
-            // fill travel details for destination
-            populateTravelTimesBreakdown(travelTimesTable, pathBreakdown, destination);
+        int nReached = 0;
+        for (int destination : destinations) {
+            if (values[0][destination] <= maxTripDuration) nReached++;
         }
-    }
 
-    private Multimap<Integer, PathBreakdown>[] extractPathResults(PathResult paths, TravelTimeResult travelTimes) {
-        try {
-            // Create Field object
-            Field privateField = PathResult.class.getDeclaredField("iterationsForPathTemplates");
-            // Set the accessibility as true
-            privateField.setAccessible(true);
-            // Store the value of private field in variable
-            Multimap<RouteSequence, PathResult.Iteration>[] iterationMaps = (Multimap<RouteSequence, PathResult.Iteration>[])privateField.get(paths);
-
-            Multimap<Integer, PathBreakdown>[] pathResults = new Multimap[nDestinations];
-
-            for (int d = 0; d < nDestinations; d++) {
-                pathResults[d] = ArrayListMultimap.create();
-
-                Multimap<RouteSequence, PathResult.Iteration> iterationMap = iterationMaps[d];
-                if (iterationMap != null) {
-
-                    for (RouteSequence routeSequence : iterationMap.keySet()) {
-                        Collection<PathResult.Iteration> iterations = iterationMap.get(routeSequence);
-                        int nIterations = iterations.size();
-                        checkState(nIterations > 0, "A path was stored without any iterations");
-
-                        // extract the route id's
-                        String[] path = routeSequence.detailsWithGtfsIds(this.transportNetwork.transitLayer);
-
-                        for (PathResult.Iteration iteration : iterations) {
-                            PathBreakdown breakdown = new PathBreakdown();
-                            breakdown.departureTime = Utils.getTimeFromSeconds(iteration.departureTime);
-                            breakdown.accessTime = routeSequence.stopSequence.access == null ? 0 : routeSequence.stopSequence.access.time / 60.0f;
-                            breakdown.waitTime = iteration.waitTimes.sum() / 60.0f;
-                            breakdown.rideTime = routeSequence.stopSequence.rideTimesSeconds == null ? 0 : routeSequence.stopSequence.rideTimesSeconds.sum() / 60.0f;
-                            breakdown.transferTime = routeSequence.stopSequence.transferTime(iteration) / 60f;
-                            breakdown.egressTime = routeSequence.stopSequence.egress == null ? 0 : routeSequence.stopSequence.egress.time / 60.0f;
-                            breakdown.totalTime = iteration.totalTime / 60.0f;
-
-                            breakdown.routes = path[0];
-                            breakdown.nRides = routeSequence.stopSequence.rideTimesSeconds == null ? 0 : routeSequence.stopSequence.rideTimesSeconds.size();
-
-                            if (iteration.departureTime == 0) {
-                                breakdown.departureTime = "";
-                                breakdown.routes = this.directModes.toString();
-                            }
-
-                            pathResults[d].put(iteration.departureTime, breakdown);
-                        }
-                    }
-                } else {
-                    // if iteration map for this destination is null, add possible direct route if shorter than max trip duration
-                    if (travelTimes.getValues()[0][d] <= this.maxTripDuration) {
-                        PathBreakdown breakdown = new PathBreakdown();
-                        breakdown.departureTime = "";
-                        breakdown.routes = this.directModes.toString();
-                        breakdown.totalTime = travelTimes.getValues()[0][d];
-                        pathResults[d].put(0, breakdown);
-                    }
-                }
-            }
+        int[] reachedDestinations = new int[nReached];
+        char[][] travelTimes = new char[nPercentiles][nReached];
 
-            return pathResults;
+        int position = 0;
+        for (int destination : destinations) {
+            if (values[0][destination] > maxTripDuration) continue;
 
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
-            return null;
+            reachedDestinations[position] = destination;
+            for (int p = 0; p < nPercentiles; p++) {
+                int tt = values[p][destination];
+                travelTimes[p][position] = tt <= maxTripDuration ? SparseTravelTimeMatrix.toMinutes(tt) : SparseTravelTimeMatrix.UNREACHED;
+            }
+            position++;
         }
+
+        sparseMatrix.setRow(index, reachedDestinations, travelTimes);
     }
 
-    private void populateTravelTimesBreakdown(RDataFrame travelTimesTable, Multimap<Integer, PathBreakdown>[] pathBreakdown, int destination) {
-        if (this.routingProperties.expandedTravelTimes & pathBreakdown != null) {
-            if (!pathBreakdown[destination].isEmpty()) {
-                for (int departure = secondsFromMidnight;
-                     departure < secondsFromMidnight + (routingProperties.timeWindowSize * 60);
-                     departure += 60) {
+    private void populateExpandedResults(OneOriginResult travelTimeResults, PathRecorder paths, RDataFrame travelTimesTable,
+                                         int[] destinations, int windowStart) {
+        int nMinutes = routingProperties.timeWindowSize;
 
-                    // get recorded paths
-                    Collection<PathBreakdown> pathCollection = pathBreakdown[destination].get(departure);
+        int monteCarloDrawsPerMinute;
+        if (this.transportNetwork.transitLayer.hasFrequencies) {
+            monteCarloDrawsPerMinute = routingProperties.numberOfMonteCarloDraws / routingProperties.timeWindowSize;
+        } else {
+            monteCarloDrawsPerMinute = 1;
+        }
 
-                    int monteCarloDrawsForPath = 0;
-                    for (PathBreakdown path : pathCollection) {
-                        monteCarloDrawsForPath++;
-                        addPathToDataframe(travelTimesTable, destination, monteCarloDrawsForPath, path);
-                    }
+        // recorded paths of a destination, sorted by departure minute (counting sort, reused across destinations)
+        int[] minuteOffsets = new int[nMinutes + 1];
+        int[] minutePositions = new int[nMinutes];
 
-                    int monteCarloDrawsPerMinute;
-                    if (this.transportNetwork.transitLayer.hasFrequencies) {
-                        monteCarloDrawsPerMinute = routingProperties.numberOfMonteCarloDraws / routingProperties.timeWindowSize;
-                    } else {
-                        monteCarloDrawsPerMinute = 1;
-                    }
+        for (int destination : destinations) {
+            int directTravelTime = getDirectTravelTimeSeconds(travelTimeResults, paths, destination);
+            int firstEntry = paths == null ? 0 : paths.firstEntry(destination);
+            int endEntry = paths == null ? 0 : paths.endEntry(destination);
 
-                    if (monteCarloDrawsForPath < monteCarloDrawsPerMinute) {
-                        Collection<PathBreakdown> directPaths = pathBreakdown[destination].get(0);
-
-                        PathBreakdown directPath;
-                        if (!directPaths.isEmpty()) {
-                            directPath = directPaths.iterator().next();
-                        } else {
-                            directPath = new PathBreakdown();
-                            directPath.unreachable();
-                        }
-
-                        for (int mc = monteCarloDrawsForPath + 1; mc <= monteCarloDrawsPerMinute; mc++) {
-                            directPath.departureTime = Utils.getTimeFromSeconds(departure);
-                            addPathToDataframe(travelTimesTable, destination, mc, directPath);
-                        }
-                    }
+            if (firstEntry == endEntry && directTravelTime < 0) continue;
+
+            Arrays.fill(minuteOffsets, 0);
+            for (int entry = firstEntry; entry < endEntry; entry++) {
+                int minute = getDepartureMinute(paths.getDepartureTime(entry), windowStart);
+                if (minute >= 0) minuteOffsets[minute + 1]++;
+            }
+            for (int minute = 0; minute < nMinutes; minute++) {
+                minuteOffsets[minute + 1] += minuteOffsets[minute];
+            }
+            int[] entriesByMinute = new int[minuteOffsets[nMinutes]];
+            System.arraycopy(minuteOffsets, 0, minutePositions, 0, nMinutes);
+            for (int entry = firstEntry; entry < endEntry; entry++) {
+                int minute = getDepartureMinute(paths.getDepartureTime(entry), windowStart);
+                if (minute >= 0) entriesByMinute[minutePositions[minute]++] = entry;
+            }
+
+            PathRuns runs = compressedOutput ? new PathRuns(travelTimesTable, destination) : null;
+
+            for (int minute = 0; minute < nMinutes; minute++) {
+                int departureTime = windowStart + minute * 60;
+
+                int monteCarloDrawsForPath = 0;
+                for (int i = minuteOffsets[minute]; i < minuteOffsets[minute + 1]; i++) {
+                    int entry = entriesByMinute[i];
+                    monteCarloDrawsForPath++;
+                    addPath(travelTimesTable, runs, destination, monteCarloDrawsForPath, departureTime,
+                            paths.getRouteSequenceId(entry), paths.getAccessSeconds(entry), paths.getWaitSeconds(entry),
+                            paths.getRideSeconds(entry), paths.getTransferSeconds(entry), paths.getEgressSeconds(entry),
+                            paths.getNumberOfRides(entry), paths.getTotalSeconds(entry));
+                }
+
+                // draws in which no transit path was recorded use the direct path, or are unreachable
+                int totalTime = directTravelTime >= 0 ? directTravelTime : Integer.MAX_VALUE;
+                for (int mc = monteCarloDrawsForPath + 1; mc <= monteCarloDrawsPerMinute; mc++) {
+                    addPath(travelTimesTable, runs, destination, mc, departureTime, DIRECT_ROUTE_SEQUENCE,
+                            0, 0, 0, 0, 0, 0, totalTime);
                 }
             }
+
+            if (runs != null) runs.flush();
+        }
+    }
+
+    // index of the departure minute in the time window, or -1 if outside it
+    private int getDepartureMinute(int departureTime, int windowStart) {
+        int minute = (departureTime - windowStart) / 60;
+        return (departureTime < windowStart || minute >= routingProperties.timeWindowSize) ? -1 : minute;
+    }
+
+    // travel time without transit, in seconds, or -1 if the destination is not reached within maxTripDuration
+    private int getDirectTravelTimeSeconds(OneOriginResult travelTimeResults, PathRecorder paths, int destination) {
+        if (paths == null) {
+            // no transit search was run, so the travel times are the direct ones
+            int travelTime = travelTimeResults.travelTimes.getValues()[0][destination];
+            return travelTime <= this.maxTripDuration ? travelTime * 60 : -1;
         }
+
+        int travelTimeSeconds = paths.getNonTransitTravelTime(destination);
+        if (travelTimeSeconds == FastRaptorWorker.UNREACHED || travelTimeSeconds > maxTripDuration * 60) return -1;
+        return travelTimeSeconds;
     }
 
-    private void addPathToDataframe(RDataFrame travelTimesTable, int destination, int monteCarloDrawsForPath, PathBreakdown path) {
+    private void addPath(RDataFrame travelTimesTable, PathRuns runs, int destination, int monteCarloDraw, int departureTime,
+                         int routeSequence, int accessTime, int waitTime, int rideTime, int transferTime, int egressTime,
+                         int nRides, int totalTime) {
+        if (runs != null) {
+            runs.add(monteCarloDraw, departureTime, routeSequence, accessTime, waitTime, rideTime, transferTime,
+                    egressTime, nRides, totalTime);
+            return;
+        }
+
+        String routes = routeSequence == DIRECT_ROUTE_SEQUENCE ? this.directModes.toString() : routeSequences.getRoutes(routeSequence);
+
+        // direct paths are reported in whole minutes, like the travel times in regular matrices
+        double totalMinutes;
+        if (totalTime == Integer.MAX_VALUE) {
+            totalMinutes = Integer.MAX_VALUE;
+        } else if (routeSequence == DIRECT_ROUTE_SEQUENCE) {
+            totalMinutes = totalTime / 60;
+        } else {
+            totalMinutes = totalTime / 60.0;
+        }
+
+        addPathToDataframe(travelTimesTable, destination, monteCarloDraw, Utils.getTimeFromSeconds(departureTime), routes,
+                accessTime / 60.0, waitTime / 60.0, rideTime / 60.0, transferTime / 60.0, egressTime / 60.0,
+                nRides, totalMinutes);
+    }
+
+    private static double roundTo1Place(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private void addPathToDataframe(RDataFrame travelTimesTable, int destination, int monteCarloDrawsForPath,
+                                    String departureTime, String routes,
+                                    double accessTime, double waitTime, double rideTime, double transferTime, double egressTime,
+                                    int nRides, double totalTime) {
         travelTimesTable.append();
 
         // set destination id
         travelTimesTable.set("to_id", toIds[destination]);
         travelTimesTable.set("draw_number", monteCarloDrawsForPath);
 
-        travelTimesTable.set("departure_time", path.departureTime);
-        travelTimesTable.set("routes", path.routes);
-        travelTimesTable.set("total_time", path.getCombinedTravelTime() > 0 ? path.getCombinedTravelTime() : path.getTotalTime());
+        travelTimesTable.set("departure_time", departureTime);
+        travelTimesTable.set("routes", routes);
+
+        double combinedTravelTime = roundTo1Place(roundTo1Place(accessTime) + roundTo1Place(waitTime) +
+                roundTo1Place(rideTime) + roundTo1Place(transferTime) + roundTo1Place(egressTime));
+        travelTimesTable.set("total_time", combinedTravelTime > 0 ? combinedTravelTime : roundTo1Place(totalTime));
 
         if (routingProperties.travelTimesBreakdown) {
-            travelTimesTable.set("access_time", path.getAccessTime());
-            travelTimesTable.set("wait_time", path.getWaitTime());
-            travelTimesTable.set("ride_time", path.getRideTime());
-            travelTimesTable.set("transfer_time", path.getTransferTime());
-            travelTimesTable.set("egress_time", path.getEgressTime());
-            travelTimesTable.set("n_rides", path.nRides);
+            travelTimesTable.set("access_time", roundTo1Place(accessTime));
+            travelTimesTable.set("wait_time", roundTo1Place(waitTime));
+            travelTimesTable.set("ride_time", roundTo1Place(rideTime));
+            travelTimesTable.set("transfer_time", roundTo1Place(transferTime));
+            travelTimesTable.set("egress_time", roundTo1Place(egressTime));
+            travelTimesTable.set("n_rides", nRides);
+        }
+    }
+
+    /**
+     * Run-length encoder for compressed expanded output. Consecutive departure minutes in which the same draw of a
+     * destination used the same route sequence with the same times are written as a single row, with the first and
+     * last departure times of the run.
+     */
+    private class PathRuns {
+        private final RDataFrame travelTimesTable;
+        private final int destination;
+
+        // open run of each draw number (index = draw - 1), as {first departure, last departure, route sequence,
+        // access, wait, ride, transfer, egress, number of rides, total time}
+        private final List<int[]> openRuns = new ArrayList<>();
+
+        PathRuns(RDataFrame travelTimesTable, int destination) {
+            this.travelTimesTable = travelTimesTable;
+            this.destination = destination;
+        }
+
+        void add(int draw, int departureTime, int routeSequence, int accessTime, int waitTime, int rideTime,
+                 int transferTime, int egressTime, int nRides, int totalTime) {
+            while (openRuns.size() < draw) openRuns.add(null);
+
+            int[] run = openRuns.get(draw - 1);
+            if (run != null && run[1] + 60 == departureTime && run[2] == routeSequence && run[3] == accessTime &&
+                    run[4] == waitTime && run[5] == rideTime && run[6] == transferTime && run[7] == egressTime &&
+                    run[8] == nRides && run[9] == totalTime) {
+                run[1] = departureTime;
+                return;
+            }
+
+            if (run != null) write(draw, run);
+            openRuns.set(draw - 1, new int[] {departureTime, departureTime, routeSequence, accessTime, waitTime,
+                    rideTime, transferTime, egressTime, nRides, totalTime});
+        }
+
+        void flush() {
+            for (int draw = 1; draw <= openRuns.size(); draw++) {
+                int[] run = openRuns.get(draw - 1);
+                if (run != null) write(draw, run);
+            }
+            openRuns.clear();
+        }
+
+        private void write(int draw, int[] run) {
+            travelTimesTable.append();
+            travelTimesTable.set("to_id", toIds[destination]);
+            travelTimesTable.set("departure_start", run[0]);
+            travelTimesTable.set("departure_end", run[1]);
+            travelTimesTable.set("draw_number", draw);
+            travelTimesTable.set("route_sequence", run[2]);
+            travelTimesTable.set("total_time", run[9]);
+
+            if (routingProperties.travelTimesBreakdown) {
+                travelTimesTable.set("access_time", run[3]);
+                travelTimesTable.set("wait_time", run[4]);
+                travelTimesTable.set("ride_time", run[5]);
+                travelTimesTable.set("transfer_time", run[6]);
+                travelTimesTable.set("egress_time", run[7]);
+                travelTimesTable.set("n_rides", run[8]);
+            }
         }
     }
 
+    private RDataFrame buildRouteSequenceTable() {
+        RDataFrame routeSequenceTable = new RDataFrame(routeSequences.size() + 1);
+        routeSequenceTable.addIntegerColumn("route_sequence", 0);
+        routeSequenceTable.addStringColumn("routes", "");
+
+        routeSequenceTable.append();
+        routeSequenceTable.set("route_sequence", DIRECT_ROUTE_SEQUENCE);
+        routeSequenceTable.set("routes", this.directModes.toString());
+
+        for (int id = 0; id < routeSequences.size(); id++) {
+            routeSequenceTable.append();
+            routeSequenceTable.set("route_sequence", id);
+            routeSequenceTable.set("routes", routeSequences.getRoutes(id));
+        }
+
+        return routeSequenceTable;
+    }
+
     @Override
     protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
         // Build return table
         RDataFrame travelTimesTable = new RDataFrame(nRows);
         travelTimesTable.addStringColumn("from_id", fromId);
         travelTimesTable.addStringColumn("to_id", "");
+        if (departureDates != null) {
+            travelTimesTable.addStringColumn("date", "");
+        }
+        if (departureWindows != null) {
+            travelTimesTable.addStringColumn("period", "");
+        }
 
-        if (!this.routingProperties.expandedTravelTimes) {
+        if (!isExpanded()) {
             // regular travel time matrix, with percentiles
             for (int p : this.routingProperties.percentiles) {
                 String ps = String.format("%02d", p);
                 travelTimesTable.addIntegerColumn("travel_time_p" + ps, Integer.MAX_VALUE);
             }
+        } else if (compressedOutput) {
+            // compressed expanded travel time matrix: runs of departure minutes with identical paths, times in seconds
+            travelTimesTable.addIntegerColumn("departure_start", 0);
+            travelTimesTable.addIntegerColumn("departure_end", 0);
+            travelTimesTable.addIntegerColumn("draw_number", 0);
+
+            if (this.routingProperties.travelTimesBreakdown) {
+                travelTimesTable.addIntegerColumn("access_time", 0);
+                travelTimesTable.addIntegerColumn("wait_time", 0);
+                travelTimesTable.addIntegerColumn("ride_time", 0);
+                travelTimesTable.addIntegerColumn("transfer_time", 0);
+                travelTimesTable.addIntegerColumn("egress_time", 0);
+            }
+
+            travelTimesTable.addIntegerColumn("route_sequence", DIRECT_ROUTE_SEQUENCE);
+
+            if (this.routingProperties.travelTimesBreakdown) {
+                travelTimesTable.addIntegerColumn("n_rides", 0);
+            }
+
+            travelTimesTable.addIntegerColumn("total_time", Integer.MAX_VALUE);
         } else {
             // expanded travel time matrix, with minute by minute route information
             travelTimesTable.addStringColumn("departure_time", "");
@@ -322,7 +648,8 @@ public class TravelTimeMatrixComputer extends R5Process {
         RegionalTask request = super.buildRequest(index);
 
         request.percentiles = this.routingProperties.percentiles;
-        request.includePathResults = this.routingProperties.expandedTravelTimes;
+        // travel time breakdowns are captured by r5r's PathRecorder, not by R5's path results
+        request.includePathResults = false;
 
         request.destinationPointSetKeys = this.opportunities;
         request.destinationPointSets = this.destinationPoints;
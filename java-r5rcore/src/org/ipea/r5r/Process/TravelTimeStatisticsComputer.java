@@ -0,0 +1,98 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.ipea.r5r.R5.R5TravelTimeComputer;
+import org.ipea.r5r.R5.TravelTimeStatisticsReducer;
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+
+import java.text.ParseException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Computes, for each origin-destination pair, statistics of the travel times over all departure minutes and Monte
+ * Carlo draws in the time window: mean, standard deviation, minimum, maximum, and the share of iterations in which
+ * the destination is reached within maxTripDuration and within each cutoff. Statistics are reduced during
+ * propagation, so the expanded travel times are never materialized.
+ */
+public class TravelTimeStatisticsComputer extends R5Process {
+
+    public TravelTimeStatisticsComputer(ForkJoinPool threadPool, TransportNetwork transportNetwork, RoutingProperties routingProperties) {
+        super(threadPool, transportNetwork, routingProperties);
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        RegionalTask request = buildRequest(index);
+
+        TravelTimeStatisticsReducer statistics = new TravelTimeStatisticsReducer(nDestinations, maxTripDuration, routingProperties.cutoffs);
+
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        if (destinationsByOrigin != null) computer.setTargetSubset(destinationsByOrigin[index]);
+        computer.addTargetReducer(statistics);
+        computer.computeTravelTimes();
+
+        RDataFrame statisticsTable = buildDataFrameStructure(fromIds[index], 10);
+        populateDataFrame(statistics, statisticsTable);
+
+        if (statisticsTable.nRow() > 0) {
+            return statisticsTable;
+        } else {
+            return null;
+        }
+    }
+
+    private void populateDataFrame(TravelTimeStatisticsReducer statistics, RDataFrame statisticsTable) {
+        for (int destination = 0; destination < nDestinations; destination++) {
+            if (!statistics.isReached(destination)) continue;
+
+            statisticsTable.append();
+            statisticsTable.set("to_id", toIds[destination]);
+            statisticsTable.set("mean_travel_time", statistics.getMean(destination));
+            statisticsTable.set("sd_travel_time", statistics.getStandardDeviation(destination));
+            statisticsTable.set("min_travel_time", statistics.getMin(destination));
+            statisticsTable.set("max_travel_time", statistics.getMax(destination));
+            statisticsTable.set("reached_share", statistics.getReachedShare(destination));
+
+            for (int c = 0; c < routingProperties.cutoffs.length; c++) {
+                statisticsTable.set("share_within_" + routingProperties.cutoffs[c], statistics.getShareWithinCutoff(c, destination));
+            }
+        }
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame statisticsTable = new RDataFrame(nRows);
+        statisticsTable.addStringColumn("from_id", fromId);
+        statisticsTable.addStringColumn("to_id", "");
+        statisticsTable.addDoubleColumn("mean_travel_time", 0.0);
+        statisticsTable.addDoubleColumn("sd_travel_time", 0.0);
+        statisticsTable.addDoubleColumn("min_travel_time", 0.0);
+        statisticsTable.addDoubleColumn("max_travel_time", 0.0);
+        statisticsTable.addDoubleColumn("reached_share", 0.0);
+
+        for (int cutoff : routingProperties.cutoffs) {
+            statisticsTable.addDoubleColumn("share_within_" + cutoff, 0.0);
+        }
+
+        return statisticsTable;
+    }
+
+    @Override
+    protected RegionalTask buildRequest(int index) throws ParseException {
+        RegionalTask request = super.buildRequest(index);
+
+        // travel times are only reduced by the TravelTimeStatisticsReducer, so R5 keeps no travel time matrix
+        request.percentiles = this.routingProperties.percentiles;
+        request.recordTimes = false;
+        request.recordAccessibility = false;
+        request.includePathResults = false;
+
+        request.destinationPointSetKeys = this.opportunities;
+        request.destinationPointSets = this.destinationPoints;
+
+        return request;
+    }
+}
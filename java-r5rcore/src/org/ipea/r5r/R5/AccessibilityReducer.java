@@ -0,0 +1,48 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.PointSet;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * Computes accessibility for several opportunity sets, decay functions, percentiles and cutoffs in a single pass
+ * over the travel times to each destination, using precomputed DecayWeights.
+ */
+public class AccessibilityReducer extends PercentileTravelTimeReducer {
+
+    protected final PointSet[] opportunities;
+    protected final DecayWeights decayWeights;
+
+    protected final double[][][][] accessibility; // [opportunity][decay function][percentile][cutoff]
+
+    public AccessibilityReducer(PointSet[] opportunities, DecayWeights decayWeights, int[] percentiles) {
+        super(percentiles);
+        this.opportunities = opportunities;
+        this.decayWeights = decayWeights;
+
+        this.accessibility = new double[opportunities.length][decayWeights.nDecayFunctions()][percentiles.length][decayWeights.nCutoffs()];
+    }
+
+    @Override
+    protected void recordPercentileTravelTimes(int target, int[] percentileTravelTimes) {
+        for (int o = 0; o < opportunities.length; o++) {
+            double count = opportunities[o].getOpportunityCount(target);
+            if (count == 0) continue;
+
+            for (int p = 0; p < percentiles.length; p++) {
+                int travelTime = percentileTravelTimes[p];
+                if (travelTime == UNREACHED || travelTime > decayWeights.getMaxTravelTimeSeconds()) continue;
+
+                for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+                    for (int c = 0; c < decayWeights.nCutoffs(); c++) {
+                        accessibility[o][d][p][c] += count * decayWeights.getWeights(d, c)[travelTime];
+                    }
+                }
+            }
+        }
+    }
+
+    public double getAccessibility(int opportunity, int decayFunction, int percentile, int cutoff) {
+        return accessibility[opportunity][decayFunction][percentile][cutoff];
+    }
+}
@@ -0,0 +1,34 @@
+package org.ipea.r5r.R5;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * Second pass of a floating catchment run: accessibility of one origin is the sum of the supply-to-demand ratios of
+ * the destinations it reaches, weighted by travel time.
+ */
+public class CatchmentAccessibilityReducer extends AccessibilityReducer {
+
+    private final FloatingCatchment catchment;
+
+    public CatchmentAccessibilityReducer(FloatingCatchment catchment, int[] percentiles) {
+        super(catchment.getOpportunities(), catchment.getDecayWeights(), percentiles);
+        this.catchment = catchment;
+    }
+
+    @Override
+    protected void recordPercentileTravelTimes(int target, int[] percentileTravelTimes) {
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int p = 0; p < percentiles.length; p++) {
+                int travelTime = percentileTravelTimes[p];
+                if (travelTime == UNREACHED || travelTime > decayWeights.getMaxTravelTimeSeconds()) continue;
+
+                for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+                    for (int c = 0; c < decayWeights.nCutoffs(); c++) {
+                        double ratio = catchment.getRatio(o, d, p, c, target);
+                        if (ratio != 0) accessibility[o][d][p][c] += ratio * decayWeights.getWeights(d, c)[travelTime];
+                    }
+                }
+            }
+        }
+    }
+}
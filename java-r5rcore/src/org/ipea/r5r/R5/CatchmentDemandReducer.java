@@ -0,0 +1,63 @@
+package org.ipea.r5r.R5;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * First pass of a floating catchment run: collects the population of one origin, weighted by travel time to each
+ * destination it reaches. Values are kept locally, only for destinations with some demand, and added to the shared
+ * FloatingCatchment in a single synchronized call, once the origin is done.
+ */
+public class CatchmentDemandReducer extends PercentileTravelTimeReducer {
+
+    private final FloatingCatchment catchment;
+    private final DecayWeights decayWeights;
+    private final double population;
+
+    private final TIntList reachedTargets = new TIntArrayList();
+    private final TDoubleList demand = new TDoubleArrayList();
+
+    public CatchmentDemandReducer(FloatingCatchment catchment, int[] percentiles, double population) {
+        super(percentiles);
+        this.catchment = catchment;
+        this.decayWeights = catchment.getDecayWeights();
+        this.population = population;
+    }
+
+    @Override
+    protected void recordPercentileTravelTimes(int target, int[] percentileTravelTimes) {
+        if (population == 0) return;
+
+        // values of this target are appended, and dropped again if they are all zero
+        int offset = demand.size();
+        boolean anyDemand = false;
+
+        for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+            for (int p = 0; p < percentiles.length; p++) {
+                int travelTime = percentileTravelTimes[p];
+                boolean reached = travelTime != UNREACHED && travelTime <= decayWeights.getMaxTravelTimeSeconds();
+
+                for (int c = 0; c < decayWeights.nCutoffs(); c++) {
+                    double value = reached ? population * decayWeights.getWeights(d, c)[travelTime] : 0;
+                    demand.add(value);
+                    anyDemand |= value != 0;
+                }
+            }
+        }
+
+        if (anyDemand) {
+            reachedTargets.add(target);
+        } else {
+            demand.remove(offset, demand.size() - offset);
+        }
+    }
+
+    public void commit() {
+        if (reachedTargets.isEmpty()) return;
+        catchment.addDemand(reachedTargets, demand.toArray());
+    }
+}
@@ -0,0 +1,50 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.decay.DecayFunction;
+
+/**
+ * Weight tables of a set of decay functions and cutoffs, with one weight per second of travel time up to the
+ * maximum trip duration. Tables are built once per run and shared by all origins, so accessibility for many decay
+ * functions and cutoffs costs one array lookup per destination, decay function and cutoff.
+ */
+public class DecayWeights {
+
+    private final String[] names;
+    private final double[] values;
+    private final int[] cutoffsMinutes;
+    private final int maxTravelTimeSeconds;
+
+    private final double[][][] weights; // [decay function][cutoff][travel time in seconds]
+
+    public DecayWeights(String[] names, double[] values, DecayFunction[] decayFunctions, int[] cutoffsMinutes, int maxTripDurationMinutes) {
+        this.names = names;
+        this.values = values;
+        this.cutoffsMinutes = cutoffsMinutes;
+        this.maxTravelTimeSeconds = maxTripDurationMinutes * 60;
+
+        this.weights = new double[decayFunctions.length][cutoffsMinutes.length][maxTravelTimeSeconds + 1];
+        for (int d = 0; d < decayFunctions.length; d++) {
+            for (int c = 0; c < cutoffsMinutes.length; c++) {
+                int cutoffSeconds = cutoffsMinutes[c] * 60;
+                for (int t = 0; t <= maxTravelTimeSeconds; t++) {
+                    weights[d][c][t] = decayFunctions[d].computeWeight(cutoffSeconds, t);
+                }
+            }
+        }
+    }
+
+    public int nDecayFunctions() { return weights.length; }
+    public int nCutoffs() { return cutoffsMinutes.length; }
+    public int getMaxTravelTimeSeconds() { return maxTravelTimeSeconds; }
+
+    public String getName(int decayFunction) { return names[decayFunction]; }
+    public double getValue(int decayFunction) { return values[decayFunction]; }
+    public int getCutoff(int cutoff) { return cutoffsMinutes[cutoff]; }
+
+    /**
+     * Weights of one decay function and cutoff, indexed by travel time in seconds.
+     */
+    public double[] getWeights(int decayFunction, int cutoff) {
+        return weights[decayFunction][cutoff];
+    }
+}
@@ -0,0 +1,134 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.PointSet;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.BitSet;
+
+/**
+ * Uniform grid index over the points of a destination PointSet. It is used to find the destinations that fall
+ * inside an envelope without scanning every point in the set.
+ */
+public class DestinationIndex {
+
+    private static final int POINTS_PER_CELL = 16;
+    private static final double MIN_CELL_SIZE_DEGREES = 0.001;
+    private static final double METERS_PER_DEGREE_LAT = 111_320.0;
+
+    // one index per point set, released together with the point set
+    private static final LoadingCache<PointSet, DestinationIndex> indexCache = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(CacheLoader.from(DestinationIndex::new));
+
+    public static DestinationIndex forPointSet(PointSet pointSet) {
+        return indexCache.getUnchecked(pointSet);
+    }
+
+    private final double[] lats;
+    private final double[] lons;
+    private final Envelope extent;
+
+    private final double cellSize;
+    private final int nColumns;
+    private final int nRows;
+
+    // points sorted by cell, in CSR layout: points in cell c are pointsByCell[cellOffsets[c]..cellOffsets[c + 1]]
+    private final int[] cellOffsets;
+    private final int[] pointsByCell;
+
+    private DestinationIndex(PointSet pointSet) {
+        int nPoints = pointSet.featureCount();
+
+        lats = new double[nPoints];
+        lons = new double[nPoints];
+        extent = new Envelope();
+        for (int p = 0; p < nPoints; p++) {
+            lats[p] = pointSet.getLat(p);
+            lons[p] = pointSet.getLon(p);
+            extent.expandToInclude(lons[p], lats[p]);
+        }
+
+        int targetCells = Math.max(1, nPoints / POINTS_PER_CELL);
+        double area = extent.isNull() ? 0 : extent.getWidth() * extent.getHeight();
+        cellSize = Math.max(Math.sqrt(area / targetCells), MIN_CELL_SIZE_DEGREES);
+
+        nColumns = extent.isNull() ? 1 : (int) (extent.getWidth() / cellSize) + 1;
+        nRows = extent.isNull() ? 1 : (int) (extent.getHeight() / cellSize) + 1;
+
+        // counting sort of points into cells
+        cellOffsets = new int[nColumns * nRows + 1];
+        int[] pointCell = new int[nPoints];
+        for (int p = 0; p < nPoints; p++) {
+            pointCell[p] = cellForPoint(lons[p], lats[p]);
+            cellOffsets[pointCell[p] + 1]++;
+        }
+        for (int c = 0; c < nColumns * nRows; c++) {
+            cellOffsets[c + 1] += cellOffsets[c];
+        }
+
+        pointsByCell = new int[nPoints];
+        int[] cellPosition = new int[nColumns * nRows];
+        for (int p = 0; p < nPoints; p++) {
+            int cell = pointCell[p];
+            pointsByCell[cellOffsets[cell] + cellPosition[cell]++] = p;
+        }
+    }
+
+    private int column(double lon) {
+        return Math.max(0, Math.min(nColumns - 1, (int) ((lon - extent.getMinX()) / cellSize)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(nRows - 1, (int) ((lat - extent.getMinY()) / cellSize)));
+    }
+
+    private int cellForPoint(double lon, double lat) {
+        return row(lat) * nColumns + column(lon);
+    }
+
+    public int size() {
+        return lats.length;
+    }
+
+    /**
+     * Finds all points that fall inside the given envelope (in WGS84 degrees, x = lon and y = lat).
+     */
+    public BitSet find(Envelope envelope) {
+        BitSet result = new BitSet(lats.length);
+        if (envelope.isNull() || !envelope.intersects(extent)) return result;
+
+        int minColumn = column(envelope.getMinX());
+        int maxColumn = column(envelope.getMaxX());
+        int minRow = row(envelope.getMinY());
+        int maxRow = row(envelope.getMaxY());
+
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                int cell = r * nColumns + c;
+                for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+                    int p = pointsByCell[i];
+                    if (envelope.contains(lons[p], lats[p])) result.set(p);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a copy of the envelope (in WGS84 degrees) expanded by the given distance in meters in all directions.
+     * Longitude degrees are converted at the latitude furthest from the equator, so the result is never too small.
+     */
+    public static Envelope expandByMeters(Envelope envelope, double meters) {
+        double maxAbsLat = Math.min(89.0, Math.max(Math.abs(envelope.getMinY()), Math.abs(envelope.getMaxY())));
+        double deltaLat = meters / METERS_PER_DEGREE_LAT;
+        double deltaLon = meters / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(maxAbsLat)));
+
+        Envelope expanded = new Envelope(envelope);
+        expanded.expandBy(deltaLon, deltaLat);
+        return expanded;
+    }
+}
@@ -0,0 +1,83 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.PointSet;
+import gnu.trove.list.TIntList;
+
+/**
+ * Shared state of a two-step floating catchment area (2SFCA) accessibility run.
+ *
+ * In the first pass, every origin adds its population, weighted by the decay function, to the demand of each
+ * destination it reaches (CatchmentDemandReducer). Once all origins are done, computeRatios() turns demand into
+ * supply-to-demand ratios: the opportunities at each destination divided by the demand on it. In the second pass,
+ * accessibility of each origin is the sum of the ratios of the destinations it reaches, weighted by the same decay
+ * function (CatchmentAccessibilityReducer).
+ *
+ * Demand and ratios are kept per destination, decay function, percentile and cutoff, so the full travel time matrix
+ * is never stored.
+ */
+public class FloatingCatchment {
+
+    private final PointSet[] opportunities;
+    private final DecayWeights decayWeights;
+    private final int nPercentiles;
+    private final int nTargets;
+
+    private final double[][][][] demand; // [decay function][percentile][cutoff][target]
+    private double[][][][][] ratios; // [opportunity][decay function][percentile][cutoff][target]
+
+    public FloatingCatchment(PointSet[] opportunities, DecayWeights decayWeights, int nPercentiles, int nTargets) {
+        this.opportunities = opportunities;
+        this.decayWeights = decayWeights;
+        this.nPercentiles = nPercentiles;
+        this.nTargets = nTargets;
+
+        this.demand = new double[decayWeights.nDecayFunctions()][nPercentiles][decayWeights.nCutoffs()][nTargets];
+    }
+
+    public PointSet[] getOpportunities() { return opportunities; }
+    public DecayWeights getDecayWeights() { return decayWeights; }
+    public int nValuesPerTarget() { return decayWeights.nDecayFunctions() * nPercentiles * decayWeights.nCutoffs(); }
+
+    /**
+     * Adds the weighted demand of one origin. values holds nValuesPerTarget() values for each of the targets, in
+     * [decay function][percentile][cutoff] order. Called once per origin, from several threads.
+     */
+    public synchronized void addDemand(TIntList targets, double[] values) {
+        int nCutoffs = decayWeights.nCutoffs();
+        int offset = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            int target = targets.get(i);
+            for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+                for (int p = 0; p < nPercentiles; p++) {
+                    for (int c = 0; c < nCutoffs; c++) {
+                        demand[d][p][c][target] += values[offset++];
+                    }
+                }
+            }
+        }
+    }
+
+    public void computeRatios() {
+        ratios = new double[opportunities.length][decayWeights.nDecayFunctions()][nPercentiles][decayWeights.nCutoffs()][nTargets];
+
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int target = 0; target < nTargets; target++) {
+                double supply = opportunities[o].getOpportunityCount(target);
+                if (supply == 0) continue;
+
+                for (int d = 0; d < decayWeights.nDecayFunctions(); d++) {
+                    for (int p = 0; p < nPercentiles; p++) {
+                        for (int c = 0; c < decayWeights.nCutoffs(); c++) {
+                            double targetDemand = demand[d][p][c][target];
+                            if (targetDemand > 0) ratios[o][d][p][c][target] = supply / targetDemand;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public double getRatio(int opportunity, int decayFunction, int percentile, int cutoff, int target) {
+        return ratios[opportunity][decayFunction][percentile][cutoff][target];
+    }
+}
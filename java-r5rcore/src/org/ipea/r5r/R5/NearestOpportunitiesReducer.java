@@ -0,0 +1,144 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.PointSet;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * Keeps, for each opportunity set and travel time percentile, the k destinations with opportunities that are
+ * closest in travel time. Destinations are held in bounded max-heaps, so memory is proportional to k and not to the
+ * number of destinations.
+ */
+public class NearestOpportunitiesReducer extends PercentileTravelTimeReducer {
+
+    private final PointSet[] opportunities;
+    private final int maxTravelTimeSeconds;
+
+    private final BoundedHeap[][] nearest; // [opportunity][percentile]
+
+    public NearestOpportunitiesReducer(PointSet[] opportunities, int[] percentiles, int k, int maxTripDurationMinutes) {
+        super(percentiles);
+        this.opportunities = opportunities;
+        this.maxTravelTimeSeconds = maxTripDurationMinutes * 60;
+
+        this.nearest = new BoundedHeap[opportunities.length][percentiles.length];
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int p = 0; p < percentiles.length; p++) {
+                nearest[o][p] = new BoundedHeap(k);
+            }
+        }
+    }
+
+    @Override
+    protected void recordPercentileTravelTimes(int target, int[] percentileTravelTimes) {
+        for (int o = 0; o < opportunities.length; o++) {
+            if (opportunities[o].getOpportunityCount(target) <= 0) continue;
+
+            for (int p = 0; p < percentiles.length; p++) {
+                int travelTime = percentileTravelTimes[p];
+                if (travelTime == UNREACHED || travelTime > maxTravelTimeSeconds) continue;
+
+                nearest[o][p].offer(travelTime, target);
+            }
+        }
+    }
+
+    /**
+     * Number of destinations found for an opportunity set and percentile, at most k.
+     */
+    public int size(int opportunity, int percentile) {
+        return nearest[opportunity][percentile].size;
+    }
+
+    /**
+     * Sorts the destinations found for an opportunity set and percentile by travel time. Must be called before
+     * getTarget() and getTravelTime().
+     */
+    public void sort(int opportunity, int percentile) {
+        nearest[opportunity][percentile].sort();
+    }
+
+    public int getTarget(int opportunity, int percentile, int rank) {
+        return nearest[opportunity][percentile].targets[rank];
+    }
+
+    public int getTravelTime(int opportunity, int percentile, int rank) {
+        return nearest[opportunity][percentile].travelTimes[rank];
+    }
+
+    /**
+     * Max-heap of at most k (travel time, target) pairs, ordered by travel time and then by target. The root is the
+     * farthest of the nearest destinations found so far, and is replaced when a closer one comes in.
+     */
+    private static class BoundedHeap {
+        private final int[] travelTimes;
+        private final int[] targets;
+        private int size = 0;
+
+        BoundedHeap(int k) {
+            travelTimes = new int[k];
+            targets = new int[k];
+        }
+
+        void offer(int travelTime, int target) {
+            if (travelTimes.length == 0) return;
+
+            if (size < travelTimes.length) {
+                int i = size++;
+                travelTimes[i] = travelTime;
+                targets[i] = target;
+                siftUp(i);
+            } else if (isBefore(travelTime, target, travelTimes[0], targets[0])) {
+                travelTimes[0] = travelTime;
+                targets[0] = target;
+                siftDown(0, size);
+            }
+        }
+
+        /**
+         * Heap sort in place, leaving pairs in ascending order of travel time.
+         */
+        void sort() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isBefore(travelTimes[parent], targets[parent], travelTimes[i], targets[i])) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int end) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < end && isBefore(travelTimes[largest], targets[largest], travelTimes[left], targets[left])) largest = left;
+                if (right < end && isBefore(travelTimes[largest], targets[largest], travelTimes[right], targets[right])) largest = right;
+                if (largest == i) break;
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int time = travelTimes[i];
+            travelTimes[i] = travelTimes[j];
+            travelTimes[j] = time;
+
+            int target = targets[i];
+            targets[i] = targets[j];
+            targets[j] = target;
+        }
+
+        private static boolean isBefore(int travelTime, int target, int otherTravelTime, int otherTarget) {
+            return travelTime < otherTravelTime || (travelTime == otherTravelTime && target < otherTarget);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.profile.StreetTimesAndModes;
+import com.conveyal.r5.transit.path.Path;
+import com.conveyal.r5.transit.path.StopSequence;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.List;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * Records the travel time breakdown (access, wait, ride, transfer and egress times) of the transit path used in each
+ * iteration, for each destination, while travel times are propagated from stops to destinations.
+ *
+ * Components are kept in primitive arrays, one entry per recorded iteration, and entries of the same destination
+ * are stored contiguously. Route strings are not built here: each path only stores the id of its route sequence in
+ * a RouteSequenceDictionary shared by the whole run.
+ */
+public class PathRecorder {
+
+    private final List<Path[]> pathsPerIteration;
+    private final StreetTimesAndModes accessTimes;
+    private final RouteSequenceDictionary routeSequences;
+    private final int[] nonTransitTravelTimesToTargets;
+
+    // range of entries of each target: [entryStart[target], entryEnd[target])
+    private final int[] entryStart;
+    private final int[] entryEnd;
+
+    private final TIntList departureTimes = new TIntArrayList();
+    private final TIntList accessSeconds = new TIntArrayList();
+    private final TIntList waitSeconds = new TIntArrayList();
+    private final TIntList rideSeconds = new TIntArrayList();
+    private final TIntList transferSeconds = new TIntArrayList();
+    private final TIntList egressSeconds = new TIntArrayList();
+    private final TIntList totalSeconds = new TIntArrayList();
+    private final TIntList routeSequenceIds = new TIntArrayList();
+    private final TIntList nRides = new TIntArrayList();
+
+    public PathRecorder(int nTargets, List<Path[]> pathsPerIteration, StreetTimesAndModes accessTimes,
+                        RouteSequenceDictionary routeSequences, int[] nonTransitTravelTimesToTargets) {
+        this.pathsPerIteration = pathsPerIteration;
+        this.accessTimes = accessTimes;
+        this.routeSequences = routeSequences;
+        this.nonTransitTravelTimesToTargets = nonTransitTravelTimesToTargets;
+
+        this.entryStart = new int[nTargets];
+        this.entryEnd = new int[nTargets];
+    }
+
+    /**
+     * Records the transit paths that reached a target. Must be called at most once per target.
+     * @param travelTimes total travel time in seconds to the target, per iteration
+     * @param bestStops stop from which the target was reached in each iteration, or -1 if not reached by transit
+     * @param bestEgressSeconds egress time from that stop to the target, per iteration
+     * @param maxTravelTimeSeconds iterations with longer travel times are not recorded
+     */
+    public void recordTarget(int target, int[] travelTimes, int[] bestStops, int[] bestEgressSeconds, int maxTravelTimeSeconds) {
+        entryStart[target] = departureTimes.size();
+
+        for (int iteration = 0; iteration < travelTimes.length; iteration++) {
+            int stop = bestStops[iteration];
+            if (stop < 0 || travelTimes[iteration] > maxTravelTimeSeconds) continue;
+
+            Path path = pathsPerIteration.get(iteration)[stop];
+            if (path == null) continue;
+
+            StopSequence stopSequence = path.patternSequence.stopSequence;
+            StreetTimesAndModes.StreetTimeAndMode access = stopSequence.boardStops == null || stopSequence.boardStops.isEmpty() ?
+                    null : accessTimes.streetTimesAndModes.get(stopSequence.boardStops.get(0));
+
+            int accessTime = access == null ? 0 : access.time;
+            int waitTime = path.waitTimes.sum();
+            int rideTime = stopSequence.rideTimesSeconds == null ? 0 : stopSequence.rideTimesSeconds.sum();
+            int egressTime = bestEgressSeconds[iteration];
+            int totalTime = travelTimes[iteration];
+
+            departureTimes.add(path.departureTime);
+            accessSeconds.add(accessTime);
+            waitSeconds.add(waitTime);
+            rideSeconds.add(rideTime);
+            egressSeconds.add(egressTime);
+            transferSeconds.add(totalTime - accessTime - waitTime - rideTime - egressTime);
+            totalSeconds.add(totalTime);
+            routeSequenceIds.add(routeSequences.getId(path.patternSequence.patterns));
+            nRides.add(stopSequence.rideTimesSeconds == null ? 0 : stopSequence.rideTimesSeconds.size());
+        }
+
+        entryEnd[target] = departureTimes.size();
+    }
+
+    public int firstEntry(int target) { return entryStart[target]; }
+    public int endEntry(int target) { return entryEnd[target]; }
+
+    public int getDepartureTime(int entry) { return departureTimes.get(entry); }
+    public int getAccessSeconds(int entry) { return accessSeconds.get(entry); }
+    public int getWaitSeconds(int entry) { return waitSeconds.get(entry); }
+    public int getRideSeconds(int entry) { return rideSeconds.get(entry); }
+    public int getTransferSeconds(int entry) { return transferSeconds.get(entry); }
+    public int getEgressSeconds(int entry) { return egressSeconds.get(entry); }
+    public int getTotalSeconds(int entry) { return totalSeconds.get(entry); }
+    public int getRouteSequenceId(int entry) { return routeSequenceIds.get(entry); }
+    public int getNumberOfRides(int entry) { return nRides.get(entry); }
+
+    /**
+     * Travel time without transit to the target, in seconds, or UNREACHED.
+     */
+    public int getNonTransitTravelTime(int target) {
+        if (nonTransitTravelTimesToTargets == null) return UNREACHED;
+        return nonTransitTravelTimesToTargets[target];
+    }
+}
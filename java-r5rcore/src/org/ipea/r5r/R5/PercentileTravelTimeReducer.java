@@ -0,0 +1,58 @@
+package org.ipea.r5r.R5;
+
+import java.util.Arrays;
+
+/**
+ * Base for reducers that work on travel time percentiles rather than on the travel times of each iteration.
+ * Percentiles are taken from the travel times of all iterations to each destination, in seconds, with the same
+ * index as R5's TravelTimeReducer, so they match the travel time matrix, and passed on to recordPercentileTravelTimes().
+ */
+public abstract class PercentileTravelTimeReducer implements TargetTravelTimeReducer {
+
+    protected final int[] percentiles;
+
+    // scratch arrays, reused for every target
+    private int[] sortedTravelTimes = new int[0];
+    private final int[] percentileTravelTimes;
+
+    protected PercentileTravelTimeReducer(int[] percentiles) {
+        this.percentiles = percentiles;
+        this.percentileTravelTimes = new int[percentiles.length];
+    }
+
+    @Override
+    public void recordUnvaryingTravelTimeAtTarget(int target, int travelTimeSeconds) {
+        Arrays.fill(percentileTravelTimes, travelTimeSeconds);
+        recordPercentileTravelTimes(target, percentileTravelTimes);
+    }
+
+    @Override
+    public void recordTravelTimesAtTarget(int target, int[] travelTimesSeconds) {
+        int nIterations = travelTimesSeconds.length;
+        if (nIterations == 0) return;
+
+        if (sortedTravelTimes.length != nIterations) sortedTravelTimes = new int[nIterations];
+        System.arraycopy(travelTimesSeconds, 0, sortedTravelTimes, 0, nIterations);
+        Arrays.sort(sortedTravelTimes);
+
+        for (int p = 0; p < percentiles.length; p++) {
+            percentileTravelTimes[p] = sortedTravelTimes[findPercentileIndex(nIterations, percentiles[p])];
+        }
+        recordPercentileTravelTimes(target, percentileTravelTimes);
+    }
+
+    /**
+     * Index of a percentile in a sorted array of n travel times, as found by R5's TravelTimeReducer: the nearest-rank
+     * definition uses the ceiling of a one-based rank, so a zero-based index can just truncate.
+     */
+    static int findPercentileIndex(int nIterations, int percentile) {
+        int index = (int) (percentile / 100.0 * nIterations);
+        return Math.min(nIterations - 1, index);
+    }
+
+    /**
+     * Records the travel time percentiles to a target, in seconds, in the order of the percentiles array. The array
+     * is reused for the next target.
+     */
+    protected abstract void recordPercentileTravelTimes(int target, int[] percentileTravelTimes);
+}
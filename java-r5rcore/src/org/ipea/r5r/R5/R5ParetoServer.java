@@ -13,6 +13,8 @@ import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.ipea.r5r.Planner.StreetSearchCache;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.LineString;
 import org.slf4j.Logger;
@@ -31,11 +33,17 @@ public class R5ParetoServer {
 
     private static final Logger LOG = LoggerFactory.getLogger(R5ParetoServer.class);
 
+    private StreetSearchCache streetSearchCache = null;
+
     public R5ParetoServer (RegionalTask request, TransportNetwork transportNetwork) {
         this.profileRequest = request;
         this.transportNetwork = transportNetwork;
     }
 
+    public void setStreetSearchCache(StreetSearchCache streetSearchCache) {
+        this.streetSearchCache = streetSearchCache;
+    }
+
     public R5ParetoServer.ParetoReturn handle () {
         // now perform routing - always using McRaptor
         LOG.info("Performing walk search for access (other access modes not supported)");
@@ -110,18 +118,31 @@ public class R5ParetoServer {
 
     private Map<LegMode, TIntIntMap> accessEgressSearch (double fromLat, double fromLon, ProfileRequest profileRequest) {
         LOG.info("Performing walk search for access (other access modes not supported)");
-        StreetRouter sr = new StreetRouter(transportNetwork.streetLayer);
-        sr.profileRequest = profileRequest;
-        sr.timeLimitSeconds = profileRequest.maxWalkTime * 60; // 20 * 60; // hardwired at 20 mins
-        sr.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        TIntIntMap accessTimes;
+
+        if (streetSearchCache != null) {
+            StreetRouter sr = streetSearchCache.search(fromLat, fromLon, LegMode.WALK, profileRequest,
+                    profileRequest.maxWalkTime * 60, false);
+            if (sr == null) {
+                LOG.error("Origin or destination not found");
+                accessTimes = new TIntIntHashMap();
+            } else {
+                accessTimes = sr.getReachedStops(); // map from stop ID to access time
+            }
+        } else {
+            StreetRouter sr = new StreetRouter(transportNetwork.streetLayer);
+            sr.profileRequest = profileRequest;
+            sr.timeLimitSeconds = profileRequest.maxWalkTime * 60; // 20 * 60; // hardwired at 20 mins
+            sr.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
 
-        if (!sr.setOrigin(fromLat, fromLon)) {
-            LOG.error("Origin or destination not found");
-        }
+            if (!sr.setOrigin(fromLat, fromLon)) {
+                LOG.error("Origin or destination not found");
+            }
 
-        sr.route();
+            sr.route();
 
-        TIntIntMap accessTimes = sr.getReachedStops(); // map from stop ID to access time
+            accessTimes = sr.getReachedStops(); // map from stop ID to access time
+        }
 
         if (accessTimes.size() == 0) LOG.error("No transit near origin!");
 
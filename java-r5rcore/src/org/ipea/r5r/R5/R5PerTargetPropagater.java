@@ -0,0 +1,225 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.PointSet;
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EgressCostTable;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static com.conveyal.r5.profile.PerTargetPropagater.MM_PER_METER;
+import static com.conveyal.r5.streets.VertexStore.FIXED_FACTOR;
+
+/**
+ * Propagates travel times from transit stops to destinations, based on Conveyal's PerTargetPropagater.
+ *
+ * Before propagating, the destinations that can possibly be reached by transit are found with a spatial index: the
+ * envelope of all stops reached within maxTripDuration, expanded by the longest egress distance still available at
+ * each stop. Destinations outside that envelope cannot be reached by transit, so they are recorded with their
+ * non-transit travel times without visiting their egress cost tables.
+ *
+ * R5's path results are not supported here. Travel time breakdowns are captured by an optional PathRecorder instead,
+ * from the stop and egress time that gave the best travel time in each iteration.
+ */
+public class R5PerTargetPropagater {
+    private static final Logger LOG = LoggerFactory.getLogger(R5PerTargetPropagater.class);
+
+    // Car egress times follow the street speeds rather than the request speed, so a generous upper bound is used
+    // when converting the car egress time limit into a distance.
+    private static final double MAX_CAR_SPEED_METERS_PER_SECOND = 36.2; // 130 km/h
+
+    private final PointSet targets;
+    private final TransportNetwork network;
+    private final int[][] travelTimesToStopsForIteration;
+    private final int[] nonTransitTravelTimesToTargets;
+
+    private final int nIterations;
+    private final int nTargets;
+    private final int maxTravelTimeSeconds;
+
+    private final List<LinkedPointSet> linkedTargets;
+    private final int[] egressSpeedsMillimetersPerSecond;
+    private final int[] egressLimitsSeconds;
+    private final double[] maxEgressSpeedsMetersPerSecond;
+
+    public TravelTimeReducer travelTimeReducer;
+
+    // false when R5's reducer records neither travel times nor accessibility, so only the target reducers need the
+    // travel times and R5's reducer is not called for each target
+    private final boolean recordInTravelTimeReducer;
+
+    // when set, the transit path used in each iteration is recorded for each target
+    public PathRecorder pathRecorder = null;
+
+    // additional reducers that receive the travel times to each target
+    public List<TargetTravelTimeReducer> targetReducers = new ArrayList<>();
+
+    // when set, only these targets are propagated and recorded
+    private BitSet targetSubset = null;
+
+    public void setTargetSubset(BitSet targetSubset) {
+        this.targetSubset = targetSubset;
+    }
+
+    public R5PerTargetPropagater(PointSet targets, TransportNetwork network, EnumSet<StreetMode> egressModes,
+                                 AnalysisWorkerTask request, int[][] travelTimesToStopsForIteration,
+                                 int[] nonTransitTravelTimesToTargets) {
+        this.targets = targets;
+        this.network = network;
+        this.travelTimesToStopsForIteration = travelTimesToStopsForIteration;
+        this.nonTransitTravelTimesToTargets = nonTransitTravelTimesToTargets;
+
+        this.nIterations = travelTimesToStopsForIteration.length;
+        this.nTargets = targets.featureCount();
+        this.maxTravelTimeSeconds = request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE;
+        this.recordInTravelTimeReducer = recordsInTravelTimeReducer(request);
+
+        this.linkedTargets = new ArrayList<>(egressModes.size());
+        this.egressSpeedsMillimetersPerSecond = new int[egressModes.size()];
+        this.egressLimitsSeconds = new int[egressModes.size()];
+        this.maxEgressSpeedsMetersPerSecond = new double[egressModes.size()];
+
+        int i = 0;
+        for (StreetMode mode : egressModes) {
+            linkedTargets.add(network.linkageCache.getLinkage(targets, network.streetLayer, mode));
+
+            double speed = request.getSpeedForMode(mode);
+            egressSpeedsMillimetersPerSecond[i] = (int) (speed * MM_PER_METER);
+            egressLimitsSeconds[i] = Math.min(request.getMaxTimeSeconds(mode), maxTravelTimeSeconds);
+            maxEgressSpeedsMetersPerSecond[i] = (mode == StreetMode.CAR) ? Math.max(speed, MAX_CAR_SPEED_METERS_PER_SECOND) : speed;
+            i++;
+        }
+    }
+
+    public OneOriginResult propagate() {
+        BitSet candidateTargets = findCandidateTargets();
+        if (targetSubset != null) candidateTargets.and(targetSubset);
+        LOG.info("Propagating to {} of {} destinations inside the reachable area.", candidateTargets.cardinality(), nTargets);
+
+        int[] perIterationTravelTimes = new int[nIterations];
+        int[] perIterationStops = new int[nIterations];
+        int[] perIterationEgressTimes = new int[nIterations];
+
+        for (int target = 0; target < nTargets; target++) {
+            if (targetSubset != null && !targetSubset.get(target)) continue;
+
+            if (!candidateTargets.get(target)) {
+                if (recordInTravelTimeReducer) {
+                    travelTimeReducer.recordUnvaryingTravelTimeAtTarget(target, nonTransitTravelTimesToTargets[target]);
+                }
+                for (TargetTravelTimeReducer reducer : targetReducers) {
+                    reducer.recordUnvaryingTravelTimeAtTarget(target, nonTransitTravelTimesToTargets[target]);
+                }
+                continue;
+            }
+
+            Arrays.fill(perIterationTravelTimes, nonTransitTravelTimesToTargets[target]);
+            Arrays.fill(perIterationStops, -1);
+            propagateTransit(target, perIterationTravelTimes, perIterationStops, perIterationEgressTimes);
+            if (pathRecorder != null) {
+                pathRecorder.recordTarget(target, perIterationTravelTimes, perIterationStops, perIterationEgressTimes, maxTravelTimeSeconds);
+            }
+            for (TargetTravelTimeReducer reducer : targetReducers) {
+                reducer.recordTravelTimesAtTarget(target, perIterationTravelTimes);
+            }
+            if (recordInTravelTimeReducer) {
+                travelTimeReducer.extractTravelTimePercentilesAndRecord(target, perIterationTravelTimes);
+            }
+        }
+
+        return travelTimeReducer.finish();
+    }
+
+    /**
+     * Whether R5's TravelTimeReducer keeps anything for the request. Regional requests that record neither travel
+     * times nor accessibility are reduced only by r5r's target reducers.
+     */
+    public static boolean recordsInTravelTimeReducer(AnalysisWorkerTask request) {
+        if (!(request instanceof RegionalTask)) return true;
+
+        RegionalTask regionalTask = (RegionalTask) request;
+        return regionalTask.recordTimes || regionalTask.recordAccessibility || regionalTask.makeTauiSite;
+    }
+
+    private void propagateTransit(int target, int[] perIterationTravelTimes, int[] perIterationStops, int[] perIterationEgressTimes) {
+        for (int i = 0; i < linkedTargets.size(); i++) {
+            EgressCostTable egressCostTable = linkedTargets.get(i).getEgressCostTable();
+            int[] pointToStopLinkageCostTable = egressCostTable.pointToStopLinkageCostTables.get(target);
+            if (pointToStopLinkageCostTable == null) continue;
+
+            boolean costsInMillimeters =
+                    egressCostTable.linkageCostUnit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+
+            // the cost table is a flattened list of (stop, cost) pairs
+            for (int j = 0; j < pointToStopLinkageCostTable.length; j += 2) {
+                int stop = pointToStopLinkageCostTable[j];
+                int cost = pointToStopLinkageCostTable[j + 1];
+                int egressSeconds = costsInMillimeters ? cost / egressSpeedsMillimetersPerSecond[i] : cost;
+                if (egressSeconds > egressLimitsSeconds[i]) continue;
+
+                for (int iteration = 0; iteration < nIterations; iteration++) {
+                    int timeAtStop = travelTimesToStopsForIteration[iteration][stop];
+                    if (timeAtStop == UNREACHED || timeAtStop > maxTravelTimeSeconds) continue;
+
+                    int timeAtTarget = timeAtStop + egressSeconds;
+                    if (timeAtTarget < perIterationTravelTimes[iteration]) {
+                        perIterationTravelTimes[iteration] = timeAtTarget;
+                        perIterationStops[iteration] = stop;
+                        perIterationEgressTimes[iteration] = egressSeconds;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the destinations that may be reached by transit: those inside the envelope of the reached stops, each
+     * expanded by the egress distance that can still be covered within maxTripDuration after reaching the stop.
+     */
+    private BitSet findCandidateTargets() {
+        double maxEgressSpeed = 0;
+        int maxEgressSeconds = 0;
+        for (int i = 0; i < linkedTargets.size(); i++) {
+            maxEgressSpeed = Math.max(maxEgressSpeed, maxEgressSpeedsMetersPerSecond[i]);
+            maxEgressSeconds = Math.max(maxEgressSeconds, egressLimitsSeconds[i]);
+        }
+
+        Envelope reachableArea = new Envelope();
+        int nStops = network.transitLayer.getStopCount();
+        for (int stop = 0; stop < nStops; stop++) {
+            int bestTimeAtStop = UNREACHED;
+            for (int iteration = 0; iteration < nIterations; iteration++) {
+                bestTimeAtStop = Math.min(bestTimeAtStop, travelTimesToStopsForIteration[iteration][stop]);
+            }
+            if (bestTimeAtStop > maxTravelTimeSeconds) continue;
+
+            Coordinate coordinate = network.transitLayer.getCoordinateForStopFixed(stop);
+            if (coordinate == null) continue;
+
+            int remainingSeconds = Math.min(maxEgressSeconds, maxTravelTimeSeconds - bestTimeAtStop);
+            double radiusMeters = remainingSeconds * maxEgressSpeed + StreetLayer.LINK_RADIUS_METERS;
+
+            Envelope stopArea = new Envelope(new Coordinate(coordinate.x / FIXED_FACTOR, coordinate.y / FIXED_FACTOR));
+            reachableArea.expandToInclude(DestinationIndex.expandByMeters(stopArea, radiusMeters));
+        }
+
+        return DestinationIndex.forPointSet(targets).find(reachableArea);
+    }
+}
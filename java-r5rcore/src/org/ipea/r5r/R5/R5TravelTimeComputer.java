@@ -17,11 +17,16 @@ import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.path.Path;
 import gnu.trove.map.TIntIntMap;
+import org.ipea.r5r.Utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
@@ -36,6 +41,66 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
     private final AnalysisWorkerTask request;
     private final TransportNetwork network;
 
+    // when set, these destinations are used instead of the ones found from the request (e.g. already linked grid cells)
+    private PointSet destinationPointSet = null;
+
+    public void setDestinations(PointSet destinations) {
+        this.destinationPointSet = destinations;
+    }
+
+    // when set, travel times are only computed for these destinations (e.g. the paired destinations of an origin)
+    private BitSet targetSubset = null;
+
+    public void setTargetSubset(int[] targets) {
+        this.targetSubset = new BitSet();
+        for (int target : targets) this.targetSubset.set(target);
+    }
+
+    // when set, the travel time breakdown of transit paths is recorded, with route sequences stored in this dictionary
+    private RouteSequenceDictionary routeSequences = null;
+    private PathRecorder pathRecorder = null;
+
+    public void recordPaths(RouteSequenceDictionary routeSequences) {
+        this.routeSequences = routeSequences;
+    }
+
+    // additional reducers (statistics, accessibility...) fed with the travel times to each destination
+    private final List<TargetTravelTimeReducer> targetReducers = new ArrayList<>();
+
+    public void addTargetReducer(TargetTravelTimeReducer reducer) {
+        this.targetReducers.add(reducer);
+    }
+
+    /**
+     * Paths recorded in the last call to computeTravelTimes(), or null if no transit search was run.
+     */
+    public PathRecorder getPathRecorder() {
+        return pathRecorder;
+    }
+
+    // results of the access searches, shared by all departure windows of this origin
+    private boolean accessComputed = false;
+    private StreetTimesAndModes bestAccessOptions;
+    private PointSetTimes nonTransitTravelTimesToDestinations;
+    private boolean foundAnyOriginPoint;
+
+    /**
+     * Moves the departure window of the request. The access searches already run for this origin are kept, so the
+     * next call to computeTravelTimes() only runs transit routing and propagation.
+     */
+    public void setDepartureWindow(int fromTime, int toTime) {
+        request.fromTime = fromTime;
+        request.toTime = toTime;
+    }
+
+    /**
+     * Changes the departure date of the request, keeping the access searches already run for this origin. R5 caches
+     * the trip patterns filtered for each set of active services, so they are only filtered once per date.
+     */
+    public void setDepartureDate(LocalDate date) {
+        request.date = date;
+    }
+
     /**
      * Constructor.
      *
@@ -76,7 +141,10 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
         // We could change the preloader to retain these values in a compound return type, to avoid repetition here.
         PointSet destinations;
 
-        if (request instanceof RegionalTask
+        if (destinationPointSet != null) {
+            destinations = destinationPointSet;
+            if (destinations instanceof WebMercatorGridPointSet) travelTimeReducer.checkOpportunityExtents(destinations);
+        } else if (request instanceof RegionalTask
                 && !request.makeTauiSite
                 && request.destinationPointSets[0] instanceof FreeFormPointSet
         ) {
@@ -90,21 +158,186 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
             travelTimeReducer.checkOpportunityExtents(destinations);
         }
 
+        // I. Access to transit ==========================================================================================
+        // The access searches do not depend on the departure time, so they are run once per origin and reused when
+        // travel times are computed again for other departure windows (see setDepartureWindow).
+        if (!accessComputed) {
+            computeAccess(destinations);
+            accessComputed = true;
+        }
+
+        if (!foundAnyOriginPoint) {
+            // The origin point was not even linked to the street network.
+            // Calling finish() before streaming in any travel times to destinations is designed to produce the right result.
+            LOG.info("Origin point was outside the street network. Skipping routing and propagation, and returning default result.");
+            return travelTimeReducer.finish();
+        }
+
+        // Short circuit unnecessary transit routing: If the origin was linked to a road, but no transit stations
+        // were reached, return the non-transit grid as the final result.
+        if (request.transitModes.isEmpty() || bestAccessOptions.streetTimesAndModes.isEmpty()) {
+            LOG.info("Skipping transit search. No transit stops were reached or no transit modes were selected.");
+            boolean recordInTravelTimeReducer = R5PerTargetPropagater.recordsInTravelTimeReducer(request);
+            int nTargets =  nonTransitTravelTimesToDestinations.size();
+            if (request instanceof RegionalTask && ((RegionalTask) request).oneToOne) nTargets = 1;
+            for (int target = 0; target < nTargets; target++) {
+                if (targetSubset != null && !targetSubset.get(target)) continue;
+                // TODO: pull this loop out into a method: travelTimeReducer.recordPointSetTimes(accessTimes)
+                final int travelTimeSeconds = nonTransitTravelTimesToDestinations.getTravelTimeToPoint(target);
+                if (recordInTravelTimeReducer) travelTimeReducer.recordUnvaryingTravelTimeAtTarget(target, travelTimeSeconds);
+                for (TargetTravelTimeReducer reducer : targetReducers) {
+                    reducer.recordUnvaryingTravelTimeAtTarget(target, travelTimeSeconds);
+                }
+            }
+            return travelTimeReducer.finish();
+        }
+
+        // II. Transit Routing ========================================================================================
+        // Transit stops were reached. Perform transit routing from those stops to all other reachable stops. The result
+        // is a travel time in seconds for each iteration (departure time x monte carlo draw), for each transit stop.
+        int[][] transitTravelTimesToStops;
+        FastRaptorWorker worker = null;
+        if (request.inRoutingFareCalculator == null) {
+            boolean retainPaths = request.includePathResults || request.makeTauiSite || routeSequences != null;
+
+            // Stop-level results may be reused from the on-disk cache, unless paths are needed
+            StopTimesCache stopTimesCache = null;
+            String stopTimesCacheKey = null;
+            transitTravelTimesToStops = null;
+            if (!Utils.stopTimesCacheFolder.equals("") && !retainPaths) {
+                stopTimesCache = new StopTimesCache(Utils.stopTimesCacheFolder);
+                stopTimesCacheKey = stopTimesCache.buildKey(request, network);
+                if (stopTimesCacheKey == null) {
+                    stopTimesCache = null;
+                } else {
+                    transitTravelTimesToStops = stopTimesCache.load(stopTimesCacheKey, network.transitLayer.getStopCount());
+                    if (transitTravelTimesToStops != null) LOG.info("Reusing cached travel times to transit stops.");
+                }
+            }
+
+            if (transitTravelTimesToStops == null) {
+                worker = new FastRaptorWorker(network.transitLayer, request, bestAccessOptions.getTimes());
+                if (retainPaths) {
+                    // By default, this is false and intermediate results (e.g. paths) are discarded.
+                    // TODO do we really need to save all states just to get the travel time breakdown?
+                    worker.retainPaths = true;
+                }
+                // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
+                // Returns the total travel times as a 2D array of [searchIteration][destinationStopIndex].
+                // Additional detailed path information is retained in the FastRaptorWorker after routing.
+                transitTravelTimesToStops = worker.route();
+
+                if (stopTimesCache != null) stopTimesCache.store(stopTimesCacheKey, transitTravelTimesToStops);
+            }
+        } else {
+//            Map<LegMode, StreetRouter> accessRouter = findAccessPaths(request);
+//            Map<LegMode, StreetRouter> egressRouter = findEgressPaths(request);
+
+//            bestAccessOptions.getTimes()
+            Map<LegMode, TIntIntMap> accessTimes = new HashMap<>();
+            for (LegMode mode : request.accessModes) {
+                accessTimes.put(mode, bestAccessOptions.getTimes());
+            }
+
+            // TODO maxClockTime could provide a tighter bound, as it could be based on the actual departure time, not the last possible
+            IntFunction<DominatingList> listSupplier =
+                    (departureTime) -> new FareDominatingList(
+                            request.inRoutingFareCalculator,
+                            request.maxFare,
+                            departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
+            McRaptorSuboptimalPathProfileRouter mcRaptorWorker = new McRaptorSuboptimalPathProfileRouter(network,
+                    request, accessTimes, null, listSupplier, InRoutingFareCalculator.getCollator(request));
+            mcRaptorWorker.route();
+            transitTravelTimesToStops = mcRaptorWorker.getBestTimes();
+        }
+
+        // III. Egress Propagation ======================================================================================
+        // Propagate these travel times for every iteration at every stop out to the destination points, via streets.
+
+        // Prepare a set of modes, all of which will simultaneously be used for on-street egress.
+        EnumSet<StreetMode> egressStreetModes = LegMode.toStreetModeSet(request.egressModes);
+
+        // Unless path details are needed, propagate only to the destinations inside the area reachable from the
+        // stops found above, using r5r's bounded propagator.
+        boolean oneToOne = request instanceof RegionalTask && ((RegionalTask) request).oneToOne;
+        if (!request.includePathResults && !request.makeTauiSite && !oneToOne) {
+            R5PerTargetPropagater boundedPropagater = new R5PerTargetPropagater(
+                    destinations,
+                    network,
+                    egressStreetModes,
+                    request,
+                    transitTravelTimesToStops,
+                    nonTransitTravelTimesToDestinations.travelTimes
+            );
+            boundedPropagater.travelTimeReducer = travelTimeReducer;
+            if (targetSubset != null) boundedPropagater.setTargetSubset(targetSubset);
+            boundedPropagater.targetReducers = targetReducers;
+
+            if (routeSequences != null && worker != null) {
+                pathRecorder = new PathRecorder(destinations.featureCount(), worker.pathsPerIteration,
+                        bestAccessOptions, routeSequences, nonTransitTravelTimesToDestinations.travelTimes);
+                boundedPropagater.pathRecorder = pathRecorder;
+            }
+
+            return boundedPropagater.propagate();
+        }
+
+        // This propagator will link the destinations to the street layer for all modes as needed.
+        PerTargetPropagater perTargetPropagater = new PerTargetPropagater(
+                destinations,
+                network.streetLayer,
+                egressStreetModes,
+                request,
+                transitTravelTimesToStops,
+                nonTransitTravelTimesToDestinations.travelTimes
+        );
+
+        // We cannot yet merge the functionality of the TravelTimeReducer into the PerTargetPropagator
+        // because in the non-transit case we call the reducer directly (see above).
+        perTargetPropagater.travelTimeReducer = travelTimeReducer;
+
+        // When path results are needed (directly requested, or for a Taui site), read them from the worker,
+        // annotating with the access mode, then use the annotated paths to initialize the appropriate field in the
+        // propagater. Not supported for fare requests, which use the McRaptor router and path style.
+        if ((request.includePathResults || request.makeTauiSite) && worker != null) {
+            perTargetPropagater.pathsToStopsForIteration = worker.pathsPerIteration.stream().peek(paths -> {
+                for (Path path : paths) {
+                    if (path != null) {
+                        path.patternSequence.stopSequence.setAccess(bestAccessOptions);
+                    }
+                }
+            }).collect(Collectors.toList());
+            // Initialize the propagater's pathWriter to write Taui results directly to storage (instead of returning
+            // them to the backend).
+            if (request.makeTauiSite) {
+                perTargetPropagater.pathWriter = new PathWriter(request);
+            }
+        }
+
+        return perTargetPropagater.propagate();
+
+    }
+
+    /**
+     * Runs the access street searches from the origin, finding the transit stops reached and the travel times to
+     * destinations without transit.
+     */
+    private void computeAccess(PointSet destinations) {
         // I. Access to transit (or direct non-transit travel to destination) ==========================================
         // Use one or more modes to access transit stops, retaining the reached transit stops as well as the travel
         // times to the destination points using those access modes.
 
         // A map from transit stop vertex indices to the travel time (in seconds) and mode used to reach those
         // vertices.
-        StreetTimesAndModes bestAccessOptions = new StreetTimesAndModes();
+        bestAccessOptions = new StreetTimesAndModes();
 
         // Travel times in seconds to each destination point (or MAX_INT for unreachable points?)
         // Starts out as null but will be updated when any access leg search succeeds.
-        PointSetTimes nonTransitTravelTimesToDestinations = null;
+        nonTransitTravelTimesToDestinations = null;
 
         // We will try to find a starting point in the street network and perform an access search with each street mode.
         // This tracks whether any of those searches (for any mode) were successfully connected to the street network.
-        boolean foundAnyOriginPoint = false;
+        foundAnyOriginPoint = false;
 
         // Convert from profile routing qualified modes to internal modes. This also ensures we don't route on
         // multiple LegModes that have the same StreetMode (such as BIKE and BIKE_RENT).
@@ -257,106 +490,6 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
             // TODO should we allow non transit access with park and ride? Maybe with an additional parameter?
             nonTransitTravelTimesToDestinations = PointSetTimes.allUnreached(destinations);
         }
-
-        if (!foundAnyOriginPoint) {
-            // The origin point was not even linked to the street network.
-            // Calling finish() before streaming in any travel times to destinations is designed to produce the right result.
-            LOG.info("Origin point was outside the street network. Skipping routing and propagation, and returning default result.");
-            return travelTimeReducer.finish();
-        }
-
-        // Short circuit unnecessary transit routing: If the origin was linked to a road, but no transit stations
-        // were reached, return the non-transit grid as the final result.
-        if (request.transitModes.isEmpty() || bestAccessOptions.streetTimesAndModes.isEmpty()) {
-            LOG.info("Skipping transit search. No transit stops were reached or no transit modes were selected.");
-            int nTargets =  nonTransitTravelTimesToDestinations.size();
-            if (request instanceof RegionalTask && ((RegionalTask) request).oneToOne) nTargets = 1;
-            for (int target = 0; target < nTargets; target++) {
-                // TODO: pull this loop out into a method: travelTimeReducer.recordPointSetTimes(accessTimes)
-                final int travelTimeSeconds = nonTransitTravelTimesToDestinations.getTravelTimeToPoint(target);
-                travelTimeReducer.recordUnvaryingTravelTimeAtTarget(target, travelTimeSeconds);
-            }
-            return travelTimeReducer.finish();
-        }
-
-        // II. Transit Routing ========================================================================================
-        // Transit stops were reached. Perform transit routing from those stops to all other reachable stops. The result
-        // is a travel time in seconds for each iteration (departure time x monte carlo draw), for each transit stop.
-        int[][] transitTravelTimesToStops;
-        FastRaptorWorker worker = null;
-        if (request.inRoutingFareCalculator == null) {
-            worker = new FastRaptorWorker(network.transitLayer, request, bestAccessOptions.getTimes());
-            if (request.includePathResults || request.makeTauiSite) {
-                // By default, this is false and intermediate results (e.g. paths) are discarded.
-                // TODO do we really need to save all states just to get the travel time breakdown?
-                worker.retainPaths = true;
-            }
-            // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
-            // Returns the total travel times as a 2D array of [searchIteration][destinationStopIndex].
-            // Additional detailed path information is retained in the FastRaptorWorker after routing.
-            transitTravelTimesToStops = worker.route();
-        } else {
-//            Map<LegMode, StreetRouter> accessRouter = findAccessPaths(request);
-//            Map<LegMode, StreetRouter> egressRouter = findEgressPaths(request);
-
-//            bestAccessOptions.getTimes()
-            Map<LegMode, TIntIntMap> accessTimes = new HashMap<>();
-            for (LegMode mode : request.accessModes) {
-                accessTimes.put(mode, bestAccessOptions.getTimes());
-            }
-
-            // TODO maxClockTime could provide a tighter bound, as it could be based on the actual departure time, not the last possible
-            IntFunction<DominatingList> listSupplier =
-                    (departureTime) -> new FareDominatingList(
-                            request.inRoutingFareCalculator,
-                            request.maxFare,
-                            departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
-            McRaptorSuboptimalPathProfileRouter mcRaptorWorker = new McRaptorSuboptimalPathProfileRouter(network,
-                    request, accessTimes, null, listSupplier, InRoutingFareCalculator.getCollator(request));
-            mcRaptorWorker.route();
-            transitTravelTimesToStops = mcRaptorWorker.getBestTimes();
-        }
-
-        // III. Egress Propagation ======================================================================================
-        // Propagate these travel times for every iteration at every stop out to the destination points, via streets.
-
-        // Prepare a set of modes, all of which will simultaneously be used for on-street egress.
-        EnumSet<StreetMode> egressStreetModes = LegMode.toStreetModeSet(request.egressModes);
-
-        // This propagator will link the destinations to the street layer for all modes as needed.
-        PerTargetPropagater perTargetPropagater = new PerTargetPropagater(
-                destinations,
-                network.streetLayer,
-                egressStreetModes,
-                request,
-                transitTravelTimesToStops,
-                nonTransitTravelTimesToDestinations.travelTimes
-        );
-
-        // We cannot yet merge the functionality of the TravelTimeReducer into the PerTargetPropagator
-        // because in the non-transit case we call the reducer directly (see above).
-        perTargetPropagater.travelTimeReducer = travelTimeReducer;
-
-        // When path results are needed (directly requested, or for a Taui site), read them from the worker,
-        // annotating with the access mode, then use the annotated paths to initialize the appropriate field in the
-        // propagater. Not supported for fare requests, which use the McRaptor router and path style.
-        if ((request.includePathResults || request.makeTauiSite) && worker != null) {
-            perTargetPropagater.pathsToStopsForIteration = worker.pathsPerIteration.stream().peek(paths -> {
-                for (Path path : paths) {
-                    if (path != null) {
-                        path.patternSequence.stopSequence.setAccess(bestAccessOptions);
-                    }
-                }
-            }).collect(Collectors.toList());
-            // Initialize the propagater's pathWriter to write Taui results directly to storage (instead of returning
-            // them to the backend).
-            if (request.makeTauiSite) {
-                perTargetPropagater.pathWriter = new PathWriter(request);
-            }
-        }
-
-        return perTargetPropagater.propagate();
-
     }
 
     /**
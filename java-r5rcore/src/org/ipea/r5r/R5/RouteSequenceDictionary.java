@@ -0,0 +1,56 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.transit.TransitLayer;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Run-wide dictionary of route sequences. Each distinct sequence of trip patterns ridden by a path gets a small
+ * integer id, and its route string ("route_a|route_b") is built only once and shared by every origin and
+ * destination that uses it.
+ */
+public class RouteSequenceDictionary {
+
+    private final TransitLayer transitLayer;
+
+    private final Map<TIntList, Integer> idsByPatterns = new HashMap<>();
+    private final List<String> routeStrings = new ArrayList<>();
+
+    public RouteSequenceDictionary(TransitLayer transitLayer) {
+        this.transitLayer = transitLayer;
+    }
+
+    public synchronized int getId(TIntList patterns) {
+        Integer id = idsByPatterns.get(patterns);
+        if (id == null) {
+            id = routeStrings.size();
+            routeStrings.add(buildRouteString(patterns));
+            // copy the key, so later changes to the path's list can't corrupt the dictionary
+            idsByPatterns.put(new TIntArrayList(patterns), id);
+        }
+        return id;
+    }
+
+    public synchronized String getRoutes(int id) {
+        return routeStrings.get(id);
+    }
+
+    public synchronized int size() {
+        return routeStrings.size();
+    }
+
+    private String buildRouteString(TIntList patterns) {
+        StringJoiner routes = new StringJoiner("|");
+        for (int i = 0; i < patterns.size(); i++) {
+            int routeIndex = transitLayer.tripPatterns.get(patterns.get(i)).routeIndex;
+            routes.add(transitLayer.routeString(routeIndex, false));
+        }
+        return routes.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.google.common.hash.Hashing;
+import org.ipea.r5r.Network.NetworkFingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk store of stop-level RAPTOR results (travel times to every transit stop, per iteration) for each origin.
+ *
+ * Results are keyed by everything they depend on: origin location, access and transit modes, access time limits
+ * and speeds, date, departure window, Monte Carlo draws and the maximum number of rides. Egress settings and
+ * destinations are not part of the key, so later runs with other destination sets or egress limits propagate from
+ * the stored results instead of routing again.
+ *
+ * The network is identified by a fingerprint of its network.dat, so results routed on a previous build of the
+ * network are never reused. Stale files are simply never read again, and the folder can be cleared at any time.
+ */
+public class StopTimesCache {
+    private static final Logger LOG = LoggerFactory.getLogger(StopTimesCache.class);
+
+    private static final int FORMAT_VERSION = 2;
+
+    private final Path folder;
+
+    public StopTimesCache(String folder) {
+        this.folder = Paths.get(folder);
+    }
+
+    /**
+     * Returns the key of the results of a request, or null if the network can't be identified (it was not loaded
+     * from a network.dat file) and results must not be cached.
+     */
+    public String buildKey(AnalysisWorkerTask request, TransportNetwork network) {
+        String networkFingerprint = NetworkFingerprint.of(network);
+        if (networkFingerprint == null) return null;
+
+        String key = String.join(";",
+                String.valueOf(FORMAT_VERSION),
+                networkFingerprint,
+                String.format("%.6f,%.6f", request.fromLat, request.fromLon),
+                request.accessModes.toString(),
+                request.transitModes.toString(),
+                String.valueOf(request.date),
+                String.valueOf(request.fromTime),
+                String.valueOf(request.toTime),
+                String.valueOf(request.monteCarloDraws),
+                String.valueOf(request.maxRides),
+                String.valueOf(request.maxTripDurationMinutes),
+                String.valueOf(request.maxWalkTime),
+                String.valueOf(request.maxBikeTime),
+                String.valueOf(request.maxCarTime),
+                String.valueOf(request.walkSpeed),
+                String.valueOf(request.bikeSpeed),
+                String.valueOf(request.bikeTrafficStress)
+        );
+
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the stored travel times to stops as [iteration][stop], or null if they are not in the cache.
+     */
+    public int[][] load(String key, int nStops) {
+        File file = folder.resolve(key + ".bin.gz").toFile();
+        if (!file.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != FORMAT_VERSION) return null;
+
+            int nIterations = in.readInt();
+            if (in.readInt() != nStops) return null;
+
+            int[][] travelTimesToStops = new int[nIterations][nStops];
+            for (int[] iteration : travelTimesToStops) {
+                for (int stop = 0; stop < nStops; stop++) {
+                    iteration[stop] = in.readInt();
+                }
+            }
+            return travelTimesToStops;
+        } catch (IOException e) {
+            LOG.warn("Could not read cached stop travel times from {}. Routing again.", file);
+            return null;
+        }
+    }
+
+    /**
+     * Stores travel times to stops. The file is written under a temporary name and then renamed, so concurrent
+     * readers never see a partial file.
+     */
+    public void store(String key, int[][] travelTimesToStops) {
+        try {
+            Files.createDirectories(folder);
+            Path temporaryFile = Files.createTempFile(folder, key, ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporaryFile.toFile()))))) {
+                int nStops = travelTimesToStops.length > 0 ? travelTimesToStops[0].length : 0;
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(travelTimesToStops.length);
+                out.writeInt(nStops);
+                for (int[] iteration : travelTimesToStops) {
+                    for (int time : iteration) out.writeInt(time);
+                }
+            }
+
+            Files.move(temporaryFile, folder.resolve(key + ".bin.gz"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("Could not store stop travel times in {}.", folder);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.ipea.r5r.R5;
+
+/**
+ * Receives the travel times to each destination as they are propagated, in addition to R5's TravelTimeReducer.
+ * Implementations reduce them to whatever summary they need (statistics, accessibility, nearest destinations...)
+ * without the full travel time matrix being stored.
+ */
+public interface TargetTravelTimeReducer {
+
+    /**
+     * Records a travel time that is the same in every iteration, such as a travel time without transit.
+     */
+    void recordUnvaryingTravelTimeAtTarget(int target, int travelTimeSeconds);
+
+    /**
+     * Records the travel times to a target in each iteration (departure minute x Monte Carlo draw), in seconds.
+     */
+    void recordTravelTimesAtTarget(int target, int[] travelTimesSeconds);
+}
@@ -0,0 +1,102 @@
+package org.ipea.r5r.R5;
+
+import java.util.Arrays;
+
+/**
+ * Summarizes the travel times of all iterations (departure minutes x Monte Carlo draws) at each destination, while
+ * they are propagated. Works alongside R5's TravelTimeReducer, which only keeps percentiles.
+ *
+ * For each destination, it keeps the mean, standard deviation, minimum and maximum travel time (in minutes) of the
+ * iterations that reached it within maxTripDuration, the share of iterations that reached it, and the share of
+ * iterations that reached it within each cutoff.
+ */
+public class TravelTimeStatisticsReducer implements TargetTravelTimeReducer {
+
+    private final int maxTravelTimeSeconds;
+    private final int[] cutoffsSeconds;
+
+    private final double[] mean;
+    private final double[] standardDeviation;
+    private final int[] min;
+    private final int[] max;
+    private final double[] reachedShare;
+    private final double[][] shareWithinCutoff; // [cutoff][target]
+
+    // scratch array, reused for every target
+    private final int[] withinCutoff;
+
+    public TravelTimeStatisticsReducer(int nTargets, int maxTripDurationMinutes, int[] cutoffsMinutes) {
+        this.maxTravelTimeSeconds = maxTripDurationMinutes * 60;
+        this.cutoffsSeconds = Arrays.stream(cutoffsMinutes).map(c -> c * 60).toArray();
+
+        this.mean = new double[nTargets];
+        this.standardDeviation = new double[nTargets];
+        this.min = new int[nTargets];
+        this.max = new int[nTargets];
+        this.reachedShare = new double[nTargets];
+        this.shareWithinCutoff = new double[cutoffsMinutes.length][nTargets];
+        this.withinCutoff = new int[cutoffsMinutes.length];
+    }
+
+    @Override
+    public void recordUnvaryingTravelTimeAtTarget(int target, int travelTimeSeconds) {
+        if (travelTimeSeconds > maxTravelTimeSeconds) return;
+
+        mean[target] = travelTimeSeconds / 60.0;
+        standardDeviation[target] = 0;
+        min[target] = travelTimeSeconds;
+        max[target] = travelTimeSeconds;
+        reachedShare[target] = 1;
+        for (int c = 0; c < cutoffsSeconds.length; c++) {
+            shareWithinCutoff[c][target] = travelTimeSeconds <= cutoffsSeconds[c] ? 1 : 0;
+        }
+    }
+
+    @Override
+    public void recordTravelTimesAtTarget(int target, int[] travelTimesSeconds) {
+        int nIterations = travelTimesSeconds.length;
+        if (nIterations == 0) return;
+
+        int nReached = 0;
+        double sum = 0;
+        double sumOfSquares = 0;
+        int minTime = Integer.MAX_VALUE;
+        int maxTime = 0;
+        Arrays.fill(withinCutoff, 0);
+
+        for (int travelTime : travelTimesSeconds) {
+            if (travelTime > maxTravelTimeSeconds) continue;
+
+            double minutes = travelTime / 60.0;
+            nReached++;
+            sum += minutes;
+            sumOfSquares += minutes * minutes;
+            minTime = Math.min(minTime, travelTime);
+            maxTime = Math.max(maxTime, travelTime);
+
+            for (int c = 0; c < cutoffsSeconds.length; c++) {
+                if (travelTime <= cutoffsSeconds[c]) withinCutoff[c]++;
+            }
+        }
+
+        if (nReached == 0) return;
+
+        mean[target] = sum / nReached;
+        standardDeviation[target] = Math.sqrt(Math.max(0, sumOfSquares / nReached - mean[target] * mean[target]));
+        min[target] = minTime;
+        max[target] = maxTime;
+        reachedShare[target] = (double) nReached / nIterations;
+        for (int c = 0; c < cutoffsSeconds.length; c++) {
+            shareWithinCutoff[c][target] = (double) withinCutoff[c] / nIterations;
+        }
+    }
+
+    public boolean isReached(int target) { return reachedShare[target] > 0; }
+
+    public double getMean(int target) { return mean[target]; }
+    public double getStandardDeviation(int target) { return standardDeviation[target]; }
+    public double getMin(int target) { return min[target] / 60.0; }
+    public double getMax(int target) { return max[target] / 60.0; }
+    public double getReachedShare(int target) { return reachedShare[target]; }
+    public double getShareWithinCutoff(int cutoffIndex, int target) { return shareWithinCutoff[cutoffIndex][target]; }
+}
@@ -11,6 +11,7 @@ import org.ipea.r5r.Fares.FareStructureBuilder;
 import org.ipea.r5r.Fares.RuleBasedInRoutingFareCalculator;
 import org.ipea.r5r.Modifications.R5RFileStorage;
 import org.ipea.r5r.Network.NetworkBuilder;
+import org.ipea.r5r.Network.SplitCache;
 import org.ipea.r5r.Process.*;
 import org.ipea.r5r.Utils.Utils;
 import org.rosuda.JRI.RConsoleOutputStream;
@@ -119,6 +120,13 @@ public class R5RCore {
         this.routingProperties.expandedTravelTimes = expandedTravelTimes;
     }
 
+    // Routes street-only travel time matrices from the destinations when there are fewer destinations than origins.
+    // Only covers regular matrices without transit: matrices with transit modes, expanded or sparse output, OD pairs,
+    // departure windows or dates throw an IllegalArgumentException when it is set
+    public void setReverseSearch(boolean reverseSearch) {
+        this.routingProperties.reverseSearch = reverseSearch;
+    }
+
     public void setTravelTimesBreakdown(boolean detailedTravelTimes) {
         this.routingProperties.travelTimesBreakdown = detailedTravelTimes;
     }
@@ -209,11 +217,35 @@ public class R5RCore {
         return Utils.outputCsvFolder;
     }
 
+    // Stores the travel times to transit stops found for each origin in this folder, and reuses them in later calls
+    // with the same origins, access and transit settings, date and departure window. Use "" to disable the cache.
+    public void setStopTimesCache(String cacheFolder) {
+        Utils.stopTimesCacheFolder = cacheFolder;
+    }
+
+    // Routes the walking paths of all transfers stored in the network before detailed itineraries (v2) are built,
+    // so transfer legs are only looked up. Worth it when many itineraries are requested in a single call.
+    public void setPreloadTransferPaths(boolean preload) {
+        Utils.preloadTransferPaths = preload;
+    }
+
+    // Saves the points found by findSnapPoints next to network.dat, so later sessions snapping the same points skip
+    // linking them again. Only find_snap uses these splits: routing links origins and destinations in R5 itself
+    public void saveSplitCache() {
+        SplitCache.forNetwork(this.transportNetwork).save(this.dataFolder);
+    }
+
     public void setDetailedItinerariesV2(boolean v2) {
         Utils.detailedItinerariesV2 = v2;
     }
 
+    // Routes detailed itineraries that share an origin with a single McRAPTOR run (detailed itineraries v2 only)
+    public void setGroupItinerariesByOrigin(boolean groupByOrigin) {
+        Utils.groupItinerariesByOrigin = groupByOrigin;
+    }
+
     private final TransportNetwork transportNetwork;
+    private final String dataFolder;
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(R5RCore.class);
 
@@ -237,7 +269,10 @@ public class R5RCore {
         NetworkBuilder.elevationCostFunction = nativeElevationFunction;
 
         Path path = Paths.get(dataFolder).toAbsolutePath().normalize();
-        this.transportNetwork = NetworkBuilder.checkAndLoadR5Network(path.toString());
+        this.dataFolder = path.toString();
+        this.transportNetwork = NetworkBuilder.checkAndLoadR5Network(this.dataFolder);
+        // only reads network.dat to check the saved cache when split_cache.dat exists
+        SplitCache.forNetwork(this.transportNetwork).load(this.dataFolder);
 
         this.routingProperties = new RoutingProperties();
         this.routingProperties.transitLayer = this.transportNetwork.transitLayer;
@@ -283,6 +318,7 @@ public class R5RCore {
             detailedItineraryPlanner.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
             if (shortestPath) detailedItineraryPlanner.shortestPathOnly();
             if (dropItineraryGeometry) { detailedItineraryPlanner.dropItineraryGeometry(); }
+            if (Utils.groupItinerariesByOrigin) { detailedItineraryPlanner.groupByOrigin(); }
 
             return detailedItineraryPlanner.run();
         } else {
@@ -370,6 +406,117 @@ public class R5RCore {
         return travelTimeMatrixComputer.run();
     }
 
+    // Travel times between explicit origin-destination pairs. Arrays are aligned, so the i-th origin is paired with
+    // the i-th destination. Each distinct origin is routed once for all of its paired destinations.
+    public RDataFrame travelTimeMatrixPaired(String[] fromIds, double[] fromLats, double[] fromLons,
+                                             String[] toIds, double[] toLats, double[] toLons,
+                                             String directModes, String transitModes, String accessModes, String egressModes,
+                                             String date, String departureTime,
+                                             int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        TravelTimeMatrixComputer travelTimeMatrixComputer = new TravelTimeMatrixComputer(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        travelTimeMatrixComputer.setODPairs(fromIds, fromLats, fromLons, toIds, toLats, toLons);
+        travelTimeMatrixComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        travelTimeMatrixComputer.setDepartureDateTime(date, departureTime);
+        travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return travelTimeMatrixComputer.run();
+    }
+
+    // Same as travelTimeMatrix, but returns a compact sparse matrix with 16-bit minutes per reached destination,
+    // which can be exported in bulk instead of being converted row by row into a data.frame. Not available with CSV
+    // output.
+    public SparseTravelTimeMatrix travelTimeMatrixSparse(String[] fromIds, double[] fromLats, double[] fromLons,
+                                                         String[] toIds, double[] toLats, double[] toLons,
+                                                         String directModes, String transitModes, String accessModes, String egressModes,
+                                                         String date, String departureTime,
+                                                         int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        TravelTimeMatrixComputer travelTimeMatrixComputer = new TravelTimeMatrixComputer(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        travelTimeMatrixComputer.setOrigins(fromIds, fromLats, fromLons);
+        travelTimeMatrixComputer.setDestinations(toIds, toLats, toLons);
+        travelTimeMatrixComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        travelTimeMatrixComputer.setDepartureDateTime(date, departureTime);
+        travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return travelTimeMatrixComputer.runSparse();
+    }
+
+    // Expanded travel time matrix, run-length compressed over departure minutes. Returns the travel times table and
+    // a dictionary of route sequences referenced by its route_sequence column.
+    public List<RDataFrame> travelTimeMatrixCompressed(String[] fromIds, double[] fromLats, double[] fromLons,
+                                                       String[] toIds, double[] toLats, double[] toLons,
+                                                       String directModes, String transitModes, String accessModes, String egressModes,
+                                                       String date, String departureTime,
+                                                       int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        TravelTimeMatrixComputer travelTimeMatrixComputer = new TravelTimeMatrixComputer(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        travelTimeMatrixComputer.setOrigins(fromIds, fromLats, fromLons);
+        travelTimeMatrixComputer.setDestinations(toIds, toLats, toLons);
+        travelTimeMatrixComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        travelTimeMatrixComputer.setDepartureDateTime(date, departureTime);
+        travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return travelTimeMatrixComputer.runCompressed();
+    }
+
+    // Travel time matrix for several departure windows (e.g. AM peak, midday, PM peak), each one starting at one of
+    // departureTimes and lasting timeWindowSize minutes. Origins are snapped and access searches run only once for
+    // all windows. Results include a 'period' column with the name of the window.
+    public RDataFrame travelTimeMatrixMultiPeriod(String[] fromIds, double[] fromLats, double[] fromLons,
+                                                  String[] toIds, double[] toLats, double[] toLons,
+                                                  String directModes, String transitModes, String accessModes, String egressModes,
+                                                  String date, String[] periods, String[] departureTimes,
+                                                  int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException, ParseException {
+
+        TravelTimeMatrixComputer travelTimeMatrixComputer = new TravelTimeMatrixComputer(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        travelTimeMatrixComputer.setOrigins(fromIds, fromLats, fromLons);
+        travelTimeMatrixComputer.setDestinations(toIds, toLats, toLons);
+        travelTimeMatrixComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        travelTimeMatrixComputer.setDepartureDateTime(date, departureTimes[0]);
+        travelTimeMatrixComputer.setDepartureWindows(periods, departureTimes);
+        travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return travelTimeMatrixComputer.run();
+    }
+
+    // Travel time matrix for several departure dates (e.g. a weekday, a Saturday and a Sunday) in a single run.
+    // Origins are snapped and access searches run only once for all dates. Results include a 'date' column.
+    public RDataFrame travelTimeMatrixMultiDate(String[] fromIds, double[] fromLats, double[] fromLons,
+                                                String[] toIds, double[] toLats, double[] toLons,
+                                                String directModes, String transitModes, String accessModes, String egressModes,
+                                                String[] dates, String departureTime,
+                                                int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        TravelTimeMatrixComputer travelTimeMatrixComputer = new TravelTimeMatrixComputer(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        travelTimeMatrixComputer.setOrigins(fromIds, fromLats, fromLons);
+        travelTimeMatrixComputer.setDestinations(toIds, toLats, toLons);
+        travelTimeMatrixComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        travelTimeMatrixComputer.setDepartureDateTime(dates[0], departureTime);
+        travelTimeMatrixComputer.setDepartureDates(dates);
+        travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return travelTimeMatrixComputer.run();
+    }
+
+    // Travel time statistics over all departure minutes and draws (mean, sd, min, max and shares within the cutoffs
+    // set with setCutoffs), with one row per origin-destination pair.
+    public RDataFrame travelTimeStatistics(String[] fromIds, double[] fromLats, double[] fromLons,
+                                           String[] toIds, double[] toLats, double[] toLons,
+                                           String directModes, String transitModes, String accessModes, String egressModes,
+                                           String date, String departureTime,
+                                           int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        TravelTimeStatisticsComputer statisticsComputer = new TravelTimeStatisticsComputer(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        statisticsComputer.setOrigins(fromIds, fromLats, fromLons);
+        statisticsComputer.setDestinations(toIds, toLats, toLons);
+        statisticsComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        statisticsComputer.setDepartureDateTime(date, departureTime);
+        statisticsComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return statisticsComputer.run();
+    }
+
     // ----------------------------------  PARETO FRONTIERS  -----------------------------------------
 
     public RDataFrame paretoFrontier(String fromId, double fromLat, double fromLon,
@@ -462,28 +609,121 @@ public class R5RCore {
         return accessibilityEstimator.run();
     }
 
+    // Population-weighted accessibility summaries by group of origins (weighted mean, Gini, Palma, bottom 40% and top
+    // 10% shares). originGroups and originWeights have one value per origin.
+    public RDataFrame accessibilitySummary(String[] fromIds, double[] fromLats, double[] fromLons,
+                                           String[] originGroups, double[] originWeights,
+                                           String[] toIds, double[] toLats, double[] toLons,
+                                           String[] opportunities, int[][] opportunityCounts,
+                                           String decayFunction, double decayValue,
+                                           String directModes, String transitModes, String accessModes, String egressModes,
+                                           String date, String departureTime,
+                                           int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        AccessibilityEstimator accessibilityEstimator = new AccessibilityEstimator(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        accessibilityEstimator.setOrigins(fromIds, fromLats, fromLons);
+        accessibilityEstimator.setSummaryGroups(originGroups, originWeights);
+        accessibilityEstimator.setDestinations(toIds, toLats, toLons, opportunities, opportunityCounts);
+        accessibilityEstimator.setDecayFunction(decayFunction, decayValue);
+        accessibilityEstimator.setModes(directModes, accessModes, transitModes, egressModes);
+        accessibilityEstimator.setDepartureDateTime(date, departureTime);
+        accessibilityEstimator.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return accessibilityEstimator.runSummary();
+    }
+
+    // k nearest destinations in travel time with each type of opportunity, per origin and percentile
+    public RDataFrame nearestOpportunities(String[] fromIds, double[] fromLats, double[] fromLons,
+                                           String[] toIds, double[] toLats, double[] toLons,
+                                           String[] opportunities, int[][] opportunityCounts, int k,
+                                           String directModes, String transitModes, String accessModes, String egressModes,
+                                           String date, String departureTime,
+                                           int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        NearestOpportunitiesFinder nearestOpportunitiesFinder = new NearestOpportunitiesFinder(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        nearestOpportunitiesFinder.setOrigins(fromIds, fromLats, fromLons);
+        nearestOpportunitiesFinder.setDestinations(toIds, toLats, toLons, opportunities, opportunityCounts);
+        nearestOpportunitiesFinder.setK(k);
+        nearestOpportunitiesFinder.setModes(directModes, accessModes, transitModes, egressModes);
+        nearestOpportunitiesFinder.setDepartureDateTime(date, departureTime);
+        nearestOpportunitiesFinder.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return nearestOpportunitiesFinder.run();
+    }
+
+    // Competition-aware accessibility (two-step floating catchment area). population has one value per origin.
+    public RDataFrame accessibilityFloatingCatchment(String[] fromIds, double[] fromLats, double[] fromLons, double[] population,
+                                                    String[] toIds, double[] toLats, double[] toLons,
+                                                    String[] opportunities, int[][] opportunityCounts,
+                                                    String decayFunction, double decayValue,
+                                                    String directModes, String transitModes, String accessModes, String egressModes,
+                                                    String date, String departureTime,
+                                                    int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        AccessibilityEstimator accessibilityEstimator = new AccessibilityEstimator(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        accessibilityEstimator.setOrigins(fromIds, fromLats, fromLons);
+        accessibilityEstimator.setCompetition(population);
+        accessibilityEstimator.setDestinations(toIds, toLats, toLons, opportunities, opportunityCounts);
+        accessibilityEstimator.setDecayFunction(decayFunction, decayValue);
+        accessibilityEstimator.setModes(directModes, accessModes, transitModes, egressModes);
+        accessibilityEstimator.setDepartureDateTime(date, departureTime);
+        accessibilityEstimator.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return accessibilityEstimator.run();
+    }
+
+    // Accessibility to gridded opportunities. opportunityCounts has one row per opportunity type, with one count per
+    // cell in the order of the cells returned by getGrid(resolution).
+    public RDataFrame accessibilityGrid(String[] fromIds, double[] fromLats, double[] fromLons,
+                                        int resolution, String[] opportunities, double[][] opportunityCounts,
+                                        String decayFunction, double decayValue,
+                                        String directModes, String transitModes, String accessModes, String egressModes,
+                                        String date, String departureTime,
+                                        int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        AccessibilityEstimator accessibilityEstimator = new AccessibilityEstimator(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        accessibilityEstimator.setOrigins(fromIds, fromLats, fromLons);
+        accessibilityEstimator.setGridDestinations(resolution, opportunities, opportunityCounts);
+        accessibilityEstimator.setDecayFunction(decayFunction, decayValue);
+        accessibilityEstimator.setModes(directModes, accessModes, transitModes, egressModes);
+        accessibilityEstimator.setDepartureDateTime(date, departureTime);
+        accessibilityEstimator.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return accessibilityEstimator.run();
+    }
+
+    // Accessibility for several decay functions at once (e.g. STEP, LINEAR and LOGISTIC with different parameters).
+    // Routing runs once per origin, and every decay function, percentile and cutoff is evaluated over the same travel
+    // times. Results include decay_function and decay_value columns.
+    public RDataFrame accessibilityMultiDecay(String[] fromIds, double[] fromLats, double[] fromLons,
+                                              String[] toIds, double[] toLats, double[] toLons,
+                                              String[] opportunities, int[][] opportunityCounts,
+                                              String[] decayFunctions, double[] decayValues,
+                                              String directModes, String transitModes, String accessModes, String egressModes,
+                                              String date, String departureTime,
+                                              int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        AccessibilityEstimator accessibilityEstimator = new AccessibilityEstimator(this.r5rThreadPool, this.transportNetwork, this.routingProperties);
+        accessibilityEstimator.setOrigins(fromIds, fromLats, fromLons);
+        accessibilityEstimator.setDestinations(toIds, toLats, toLons, opportunities, opportunityCounts);
+        accessibilityEstimator.setDecayFunctions(decayFunctions, decayValues);
+        accessibilityEstimator.setModes(directModes, accessModes, transitModes, egressModes);
+        accessibilityEstimator.setDepartureDateTime(date, departureTime);
+        accessibilityEstimator.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        return accessibilityEstimator.run();
+    }
+
     // Test decay functions used to calculate accessibility
     public double[] testDecay(String decayFunctionName, double decayValue) {
-        DecayFunction decayFunction = null;
-        decayFunctionName = decayFunctionName.toUpperCase();
-        if (decayFunctionName.equals("STEP")) { decayFunction = new StepDecayFunction(); }
-        if (decayFunctionName.equals("EXPONENTIAL")) { decayFunction = new ExponentialDecayFunction(); }
-
-        if (decayFunctionName.equals("FIXED_EXPONENTIAL")) {
-            decayFunction = new FixedExponentialDecayFunction();
-            ((FixedExponentialDecayFunction) decayFunction).decayConstant = decayValue;
-        }
-        if (decayFunctionName.equals("LINEAR")) {
-            decayFunction = new LinearDecayFunction();
-            ((LinearDecayFunction) decayFunction).widthMinutes = (int) decayValue;
-        }
-        if (decayFunctionName.equals("LOGISTIC")) {
-            decayFunction = new LogisticDecayFunction();
-            ((LogisticDecayFunction) decayFunction).standardDeviationMinutes = decayValue;
-        }
+        DecayFunction decayFunction = Utils.buildDecayFunction(decayFunctionName, decayValue);
 
         if (decayFunction != null) {
-            decayFunction.prepare();
             double[] decay = new double [3600];
             for (int i = 0; i < 3600; i++) {
                 decay[i] = decayFunction.computeWeight(1800, i+1);
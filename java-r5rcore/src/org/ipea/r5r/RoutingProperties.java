@@ -18,6 +18,7 @@ public class RoutingProperties {
     public int [] cutoffs = {30};
     public boolean travelTimesBreakdown;
     public boolean expandedTravelTimes;
+    public boolean reverseSearch; // route from destinations when there are fewer destinations than origins
     public PathResult.Stat travelTimesBreakdownStat;
 
     public float maxFare;
@@ -41,6 +42,7 @@ public class RoutingProperties {
         travelTimesBreakdown = false;
         travelTimesBreakdownStat = PathResult.Stat.MEAN;
         expandedTravelTimes = false;
+        reverseSearch = false;
 
         maxFare = -1.0f;
         fareCalculator = null;
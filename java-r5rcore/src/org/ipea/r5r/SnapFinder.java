@@ -6,16 +6,25 @@ import com.conveyal.r5.streets.Split;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 
-import java.util.ArrayList;
+import org.ipea.r5r.Network.SplitCache;
+import org.ipea.r5r.Utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import static com.conveyal.r5.streets.VertexStore.FIXED_FACTOR;
 
 public class SnapFinder {
 
+    private static final Logger LOG = LoggerFactory.getLogger(SnapFinder.class);
+
+    // number of spatially sorted points snapped by each task
+    private static final int BATCH_SIZE = 4096;
+
     protected final ForkJoinPool r5rThreadPool;
     protected final TransportNetwork transportNetwork;
 
@@ -43,7 +52,43 @@ public class SnapFinder {
         this.nOrigins = fromIds.length;
     }
 
-    public RDataFrame run() {
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        double[] snapLats = new double[nOrigins];
+        double[] snapLons = new double[nOrigins];
+        double[] distances = new double[nOrigins];
+        boolean[] found = new boolean[nOrigins];
+
+        // points are snapped in batches of nearby points, so consecutive queries hit the same parts of the spatial
+        // index. Each point has its own slot in the result arrays, so batches never write to the same place.
+        SplitCache splitCache = SplitCache.forNetwork(transportNetwork);
+        int[] sortedIndices = sortSpatially();
+        int nBatches = (nOrigins + BATCH_SIZE - 1) / BATCH_SIZE;
+
+        r5rThreadPool.submit(() -> IntStream.range(0, nBatches).parallel().forEach(batch -> {
+            int end = Math.min(nOrigins, (batch + 1) * BATCH_SIZE);
+            for (int i = batch * BATCH_SIZE; i < end; i++) {
+                int index = sortedIndices[i];
+
+                Split split = splitCache.findSplit(fromLats[index], fromLons[index], this.mode);
+
+                if (split != null) {
+                    // found split at StreetLayer.INITIAL_LINK_RADIUS_METERS
+                    snapLats[index] = split.fixedLat / FIXED_FACTOR;
+                    snapLons[index] = split.fixedLon / FIXED_FACTOR;
+                    distances[index] = GeometryUtils.distance(fromLats[index], fromLons[index], snapLats[index], snapLons[index]);
+                    found[index] = true;
+                } else {
+                    // did not find split
+                    snapLats[index] = fromLats[index];
+                    snapLons[index] = fromLons[index];
+                    distances[index] = -1.0;
+                    found[index] = false;
+                }
+            }
+        })).get();
+
+        logRadiusStatistics(distances, found);
+
         // Build edges return table
         RDataFrame snapTable = new RDataFrame(nOrigins);
         snapTable.addStringColumn("point_id", "");
@@ -60,29 +105,75 @@ public class SnapFinder {
             snapTable.set("point_id", fromIds[index]);
             snapTable.set("lat", fromLats[index]);
             snapTable.set("lon", fromLons[index]);
+            snapTable.set("snap_lat", snapLats[index]);
+            snapTable.set("snap_lon", snapLons[index]);
+            snapTable.set("distance", distances[index]);
+            snapTable.set("found", found[index]);
+        }
+
+        return snapTable;
+    }
+
+    /**
+     * Orders points along a Z-order (Morton) curve over their bounding box, so that points that are close in the
+     * order are also close in space.
+     */
+    private int[] sortSpatially() {
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int index = 0; index < nOrigins; index++) {
+            minLat = Math.min(minLat, fromLats[index]);
+            maxLat = Math.max(maxLat, fromLats[index]);
+            minLon = Math.min(minLon, fromLons[index]);
+            maxLon = Math.max(maxLon, fromLons[index]);
+        }
+
+        double latScale = maxLat > minLat ? 0xffff / (maxLat - minLat) : 0;
+        double lonScale = maxLon > minLon ? 0xffff / (maxLon - minLon) : 0;
 
-            Split split = transportNetwork.streetLayer.findSplit(fromLats[index], fromLons[index],
-                    StreetLayer.LINK_RADIUS_METERS, this.mode);
-
-            if (split != null) {
-                // found split at StreetLayer.INITIAL_LINK_RADIUS_METERS
-                double snapLat = split.fixedLat / FIXED_FACTOR;
-                double snapLon = split.fixedLon / FIXED_FACTOR;
-
-                snapTable.set("snap_lat", snapLat);
-                snapTable.set("snap_lon", snapLon);
-                snapTable.set("distance", GeometryUtils.distance(fromLats[index], fromLons[index], snapLat, snapLon));
-                snapTable.set("found", true);
-            } else {
-                // did not find split
-                snapTable.set("snap_lat", fromLats[index]);
-                snapTable.set("snap_lon", fromLons[index]);
-                snapTable.set("distance", -1.0);
-                snapTable.set("found", false);
+        long[] keys = new long[nOrigins];
+        for (int index = 0; index < nOrigins; index++) {
+            // invalid coordinates fall outside the curve and are sorted last
+            if (Double.isNaN(fromLats[index]) || Double.isNaN(fromLons[index])) {
+                keys[index] = (0xffffffffL << 31) | index;
+                continue;
             }
+            int y = (int) ((fromLats[index] - minLat) * latScale);
+            int x = (int) ((fromLons[index] - minLon) * lonScale);
+            keys[index] = (interleave(x, y) << 31) | index;
         }
+        Arrays.sort(keys);
 
-        return snapTable;
+        int[] sortedIndices = new int[nOrigins];
+        for (int i = 0; i < nOrigins; i++) {
+            sortedIndices[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        }
+        return sortedIndices;
+    }
+
+    private static long interleave(int x, int y) {
+        long key = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            key |= ((long) (x >> bit) & 1) << (2 * bit);
+            key |= ((long) (y >> bit) & 1) << (2 * bit + 1);
+        }
+        return key;
+    }
+
+    private void logRadiusStatistics(double[] distances, boolean[] found) {
+        double[] foundDistances = IntStream.range(0, nOrigins).filter(i -> found[i]).mapToDouble(i -> distances[i]).sorted().toArray();
+        int nFound = foundDistances.length;
+
+        if (nFound == 0) {
+            LOG.info("Snapped 0 of {} points within {} m.", nOrigins, StreetLayer.LINK_RADIUS_METERS);
+            return;
+        }
 
+        LOG.info("Snapped {} of {} points within {} m. Snap distance (m): mean {}, median {}, 95th percentile {}, max {}.",
+                nFound, nOrigins, StreetLayer.LINK_RADIUS_METERS,
+                Utils.roundTo1Place(Arrays.stream(foundDistances).average().orElse(0)),
+                Utils.roundTo1Place(foundDistances[(nFound - 1) / 2]),
+                Utils.roundTo1Place(foundDistances[(int) Math.ceil(0.95 * nFound) - 1]),
+                Utils.roundTo1Place(foundDistances[nFound - 1]));
     }
 }
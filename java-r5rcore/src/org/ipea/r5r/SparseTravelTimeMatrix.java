@@ -0,0 +1,151 @@
+package org.ipea.r5r;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact travel time matrix, stored as compressed sparse rows by origin. Each row keeps the indices of the reached
+ * destinations as ints, and one unsigned 16-bit travel time in minutes per percentile (Java's char), instead of one
+ * data.frame row with String ids and boxed Integers per origin-destination pair.
+ *
+ * Rows are filled independently (one per origin, possibly in parallel), and flattened into CSR arrays on export.
+ */
+public class SparseTravelTimeMatrix {
+
+    // marks a percentile that was not reached within the maximum trip duration
+    public static final char UNREACHED = Character.MAX_VALUE;
+
+    private final String[] originIds;
+    private final String[] destinationIds;
+    private final int[] percentiles;
+
+    private final int[][] destinationsPerOrigin;
+    private final char[][][] travelTimesPerOrigin; // [origin][percentile][reached destination]
+
+    public SparseTravelTimeMatrix(String[] originIds, String[] destinationIds, int[] percentiles) {
+        this.originIds = originIds;
+        this.destinationIds = destinationIds;
+        this.percentiles = percentiles;
+
+        this.destinationsPerOrigin = new int[originIds.length][];
+        this.travelTimesPerOrigin = new char[originIds.length][][];
+    }
+
+    /**
+     * Sets the row of an origin. Rows are independent, so different origins may be set concurrently.
+     * @param destinations indices of the reached destinations
+     * @param travelTimes travel times in minutes, as [percentile][reached destination]
+     */
+    public void setRow(int origin, int[] destinations, char[][] travelTimes) {
+        destinationsPerOrigin[origin] = destinations;
+        travelTimesPerOrigin[origin] = travelTimes;
+    }
+
+    public static char toMinutes(int travelTimeMinutes) {
+        if (travelTimeMinutes < 0 || travelTimeMinutes >= UNREACHED) return UNREACHED;
+        return (char) travelTimeMinutes;
+    }
+
+    public String[] getOriginIds() { return originIds; }
+    public String[] getDestinationIds() { return destinationIds; }
+    public int[] getPercentiles() { return percentiles; }
+
+    public int nOrigins() { return originIds.length; }
+
+    public long nonZeroCount() {
+        long count = 0;
+        for (int[] row : destinationsPerOrigin) {
+            if (row != null) count += row.length;
+        }
+        return count;
+    }
+
+    /**
+     * Row offsets in CSR layout: the entries of origin i are at positions [offsets[i], offsets[i + 1]). Returned as
+     * doubles so they can be passed to R, which has no 64-bit integers.
+     */
+    public double[] getRowOffsets() {
+        double[] offsets = new double[nOrigins() + 1];
+        long offset = 0;
+        for (int origin = 0; origin < nOrigins(); origin++) {
+            offsets[origin] = offset;
+            if (destinationsPerOrigin[origin] != null) offset += destinationsPerOrigin[origin].length;
+        }
+        offsets[nOrigins()] = offset;
+        return offsets;
+    }
+
+    public int[] getDestinationIndices() {
+        int[] indices = new int[checkedNonZeroCount()];
+        int position = 0;
+        for (int[] row : destinationsPerOrigin) {
+            if (row == null) continue;
+            System.arraycopy(row, 0, indices, position, row.length);
+            position += row.length;
+        }
+        return indices;
+    }
+
+    /**
+     * Travel times in minutes for one percentile, aligned with getDestinationIndices(). Unreached percentiles are
+     * returned as NA_integer_ (Integer.MIN_VALUE in R's integer representation).
+     */
+    public int[] getTravelTimes(int percentileIndex) {
+        int[] times = new int[checkedNonZeroCount()];
+        int position = 0;
+        for (char[][] row : travelTimesPerOrigin) {
+            if (row == null) continue;
+            for (char time : row[percentileIndex]) {
+                times[position++] = (time == UNREACHED) ? Integer.MIN_VALUE : time;
+            }
+        }
+        return times;
+    }
+
+    private int checkedNonZeroCount() {
+        long count = nonZeroCount();
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Matrix has " + count + " entries, too many for a single array. Use saveToFile() instead.");
+        }
+        return (int) count;
+    }
+
+    /**
+     * Writes the whole matrix to a binary file, with no limit on the number of entries. Layout (big-endian):
+     * origin count, destination count, percentile count, percentiles, origin ids, destination ids (UTF strings),
+     * nOrigins + 1 row offsets (longs), destination indices (ints), and then the travel times of each percentile
+     * as unsigned 16-bit minutes (65535 = unreached).
+     */
+    public void saveToFile(String filename) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeInt(originIds.length);
+            out.writeInt(destinationIds.length);
+            out.writeInt(percentiles.length);
+            for (int p : percentiles) out.writeInt(p);
+
+            for (String id : originIds) out.writeUTF(id);
+            for (String id : destinationIds) out.writeUTF(id);
+
+            long offset = 0;
+            for (int[] row : destinationsPerOrigin) {
+                out.writeLong(offset);
+                if (row != null) offset += row.length;
+            }
+            out.writeLong(offset);
+
+            for (int[] row : destinationsPerOrigin) {
+                if (row == null) continue;
+                for (int destination : row) out.writeInt(destination);
+            }
+
+            for (int p = 0; p < percentiles.length; p++) {
+                for (char[][] row : travelTimesPerOrigin) {
+                    if (row == null) continue;
+                    for (char time : row[p]) out.writeChar(time);
+                }
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.ipea.r5r.Utils;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
+import com.conveyal.r5.analyst.decay.*;
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.common.GeometryUtils;
@@ -15,6 +16,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.List;
 
 public class Utils {
 
@@ -23,10 +25,42 @@ public class Utils {
     static public boolean progress = true;
 
     static public boolean detailedItinerariesV2 = true;
+    static public boolean groupItinerariesByOrigin = false;
+    static public boolean preloadTransferPaths = false;
 
     static public boolean saveOutputToCsv = false;
     static public String outputCsvFolder = "";
 
+    // folder of the on-disk cache of travel times to transit stops; empty when the cache is disabled
+    static public String stopTimesCacheFolder = "";
+
+    /**
+     * Builds and prepares one of R5's decay functions from its name (STEP, EXPONENTIAL, FIXED_EXPONENTIAL, LINEAR or
+     * LOGISTIC) and parameter. Returns null for unknown names.
+     */
+    public static DecayFunction buildDecayFunction(String decayFunctionName, double decayValue) {
+        DecayFunction decayFunction = null;
+        decayFunctionName = decayFunctionName.toUpperCase();
+        if (decayFunctionName.equals("STEP")) { decayFunction = new StepDecayFunction(); }
+        if (decayFunctionName.equals("EXPONENTIAL")) { decayFunction = new ExponentialDecayFunction(); }
+
+        if (decayFunctionName.equals("FIXED_EXPONENTIAL")) {
+            decayFunction = new FixedExponentialDecayFunction();
+            ((FixedExponentialDecayFunction) decayFunction).decayConstant = decayValue;
+        }
+        if (decayFunctionName.equals("LINEAR")) {
+            decayFunction = new LinearDecayFunction();
+            ((LinearDecayFunction) decayFunction).widthMinutes = (int) decayValue;
+        }
+        if (decayFunctionName.equals("LOGISTIC")) {
+            decayFunction = new LogisticDecayFunction();
+            ((LogisticDecayFunction) decayFunction).standardDeviationMinutes = decayValue;
+        }
+
+        if (decayFunction != null) decayFunction.prepare();
+        return decayFunction;
+    }
+
     public static EnumSet<LegMode> setLegModes(String modes) {
         EnumSet<LegMode> legModes = EnumSet.noneOf(LegMode.class);
 
@@ -136,15 +170,24 @@ public class Utils {
     }
 
     public static int getLinestringLength(LineString geometry) {
+        return getLinestringLength(List.of(geometry));
+    }
+
+    /**
+     * Length of the line made by joining the given parts end to end, without building it.
+     */
+    public static int getLinestringLength(List<LineString> parts) {
         Coordinate previousCoordinate = null;
         double accDistance = 0;
 
-        for (Coordinate coordinate : geometry.getCoordinates()) {
-            if (previousCoordinate != null) {
-                accDistance += GeometryUtils.distance(previousCoordinate.y, previousCoordinate.x, coordinate.y, coordinate.x);
-            }
+        for (LineString part : parts) {
+            for (Coordinate coordinate : part.getCoordinates()) {
+                if (previousCoordinate != null) {
+                    accDistance += GeometryUtils.distance(previousCoordinate.y, previousCoordinate.x, coordinate.y, coordinate.x);
+                }
 
-            previousCoordinate = coordinate;
+                previousCoordinate = coordinate;
+            }
         }
 
         return (int) Math.round(accDistance);
@@ -0,0 +1,334 @@
+package org.ipea.r5r.Fares;
+
+import com.conveyal.r5.analyst.fare.FareBounds;
+import com.conveyal.r5.analyst.fare.TransferAllowance;
+import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter.McRaptorState;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that RuleBasedInRoutingFareCalculator prices McRAPTOR states exactly like the original algorithm, which
+ * walked the whole chain of rides of every state.
+ */
+public class RuleBasedInRoutingFareCalculatorTest {
+
+    private static final int MINUTES = 60;
+
+    // route_id of each trip pattern. bus_1 has two patterns, to test transfers between patterns of the same route
+    private static final String[] ROUTE_ID_PER_PATTERN = {"bus_1", "bus_2", "rail_1", "rail_2", "brt_1", "express_1", "bus_1"};
+    private static final int BUS_1 = 0;
+    private static final int BUS_2 = 1;
+    private static final int RAIL_1 = 2;
+    private static final int RAIL_2 = 3;
+    private static final int BRT_1 = 4;
+    private static final int EXPRESS_1 = 5;
+    private static final int BUS_1_RETURN = 6;
+
+    private static String fareStructureJson(int maxDiscountedTransfers, float fareCap) {
+        return "{" +
+                "\"max_discounted_transfers\": " + maxDiscountedTransfers + "," +
+                "\"transfer_time_allowance\": 60," +
+                "\"fare_cap\": " + fareCap + "," +
+                "\"fares_per_type\": [" +
+                "  {\"type\": \"bus\", \"unlimited_transfers\": false, \"allow_same_route_transfer\": false, \"use_route_fare\": false, \"fare\": 4.4}," +
+                "  {\"type\": \"rail\", \"unlimited_transfers\": true, \"allow_same_route_transfer\": true, \"use_route_fare\": false, \"fare\": 5.0}," +
+                "  {\"type\": \"brt\", \"unlimited_transfers\": false, \"allow_same_route_transfer\": true, \"use_route_fare\": true, \"fare\": 0.0}," +
+                "  {\"type\": \"express\", \"unlimited_transfers\": false, \"allow_same_route_transfer\": false, \"use_route_fare\": false, \"fare\": 7.5}" +
+                "]," +
+                "\"fares_per_transfer\": [" +
+                "  {\"first_leg\": \"bus\", \"second_leg\": \"bus\", \"fare\": 6.0}," +
+                "  {\"first_leg\": \"bus\", \"second_leg\": \"rail\", \"fare\": 7.0}," +
+                "  {\"first_leg\": \"rail\", \"second_leg\": \"bus\", \"fare\": 7.0}," +
+                "  {\"first_leg\": \"bus\", \"second_leg\": \"brt\", \"fare\": 5.5}," +
+                "  {\"first_leg\": \"brt\", \"second_leg\": \"rail\", \"fare\": 6.5}," +
+                "  {\"first_leg\": \"brt\", \"second_leg\": \"brt\", \"fare\": 3.0}" +
+                "]," +
+                "\"fares_per_route\": [" +
+                "  {\"route_id\": \"bus_1\", \"fare_type\": \"bus\", \"route_fare\": 0.0}," +
+                "  {\"route_id\": \"bus_2\", \"fare_type\": \"bus\", \"route_fare\": 0.0}," +
+                "  {\"route_id\": \"rail_1\", \"fare_type\": \"rail\", \"route_fare\": 0.0}," +
+                "  {\"route_id\": \"rail_2\", \"fare_type\": \"rail\", \"route_fare\": 0.0}," +
+                "  {\"route_id\": \"brt_1\", \"fare_type\": \"brt\", \"route_fare\": 3.0}," +
+                "  {\"route_id\": \"express_1\", \"fare_type\": \"express\", \"route_fare\": 0.0}" +
+                "]" +
+                "}";
+    }
+
+    // rides as {pattern, board time in minutes}
+    private static final int[][][] CHAINS = {
+            // single ride
+            {{BUS_1, 0}},
+            // unlimited transfers between rail routes, which do not spend the allowance
+            {{RAIL_1, 0}, {RAIL_2, 20}, {RAIL_1, 40}, {BUS_2, 50}},
+            {{BUS_1, 0}, {RAIL_1, 10}, {RAIL_2, 30}, {RAIL_1, 100}},
+            // same route transfer, which bus does not allow
+            {{BUS_1, 0}, {BUS_1_RETURN, 30}},
+            {{BRT_1, 0}, {BRT_1, 30}},
+            // expired transfers
+            {{BUS_1, 0}, {BUS_2, 61}},
+            {{BUS_1, 0}, {BUS_2, 60}, {RAIL_1, 130}},
+            {{BUS_1, 0}, {RAIL_1, 50}, {BUS_2, 200}, {BRT_1, 210}},
+            // transfers without a discount
+            {{EXPRESS_1, 0}, {BUS_1, 10}, {EXPRESS_1, 20}},
+            // long chains, which hit maxDiscountedTransfers and the fare cap
+            {{BUS_1, 0}, {BUS_2, 10}, {BUS_1, 20}, {BUS_2, 30}, {BUS_1, 40}, {BUS_2, 50}},
+            {{BUS_1, 0}, {BRT_1, 10}, {RAIL_1, 20}, {BUS_2, 30}, {EXPRESS_1, 40}, {BUS_1, 50}, {RAIL_2, 60}},
+            {{EXPRESS_1, 0}, {EXPRESS_1, 10}, {EXPRESS_1, 20}, {EXPRESS_1, 30}}
+    };
+
+    @Test
+    public void faresMatchBaseline() {
+        for (int maxDiscountedTransfers : new int[] {0, 1, 2, 3}) {
+            for (float fareCap : new float[] {0.0f, 10.0f, 15.0f}) {
+                String json = fareStructureJson(maxDiscountedTransfers, fareCap);
+
+                for (int[][] chain : CHAINS) {
+                    compareChain(json, chain);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomFaresMatchBaseline() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 500; i++) {
+            String json = fareStructureJson(random.nextInt(4), random.nextBoolean() ? 0.0f : 8.0f + random.nextInt(10));
+
+            int[][] chain = new int[1 + random.nextInt(8)][];
+            int boardTime = random.nextInt(30);
+            for (int ride = 0; ride < chain.length; ride++) {
+                chain[ride] = new int[] {random.nextInt(ROUTE_ID_PER_PATTERN.length), boardTime};
+                boardTime += 5 + random.nextInt(60);
+            }
+
+            compareChain(json, chain);
+        }
+    }
+
+    /**
+     * Prices every state of a chain as the router does, with each state extending an already priced one, and prices
+     * the last state again without any priced ancestors. Both must match the baseline algorithm.
+     */
+    private void compareChain(String json, int[][] chain) {
+        RuleBasedInRoutingFareCalculator calculator =
+                new RuleBasedInRoutingFareCalculator(FareStructure.fromJson(json), ROUTE_ID_PER_PATTERN);
+        BaselineFareCalculator baseline = new BaselineFareCalculator(FareStructure.fromJson(json), ROUTE_ID_PER_PATTERN);
+
+        // access leg, and a transfer leg before each ride after the first one
+        McRaptorState state = newState(null, -1, 0);
+        state.fare = calculator.calculateFare(state, Integer.MAX_VALUE);
+        assertSameFare(baseline.calculateFare(state), state.fare);
+
+        for (int ride = 0; ride < chain.length; ride++) {
+            if (ride > 0) {
+                state = newState(state, -1, 0);
+                state.fare = calculator.calculateFare(state, Integer.MAX_VALUE);
+                assertSameFare(baseline.calculateFare(state), state.fare);
+            }
+
+            state = newState(state, chain[ride][0], chain[ride][1] * MINUTES);
+            state.fare = calculator.calculateFare(state, Integer.MAX_VALUE);
+            assertSameFare(baseline.calculateFare(state), state.fare);
+        }
+
+        McRaptorState unpriced = null;
+        for (int[] ride : chain) {
+            unpriced = newState(unpriced, ride[0], ride[1] * MINUTES);
+        }
+        assertSameFare(baseline.calculateFare(unpriced), calculator.calculateFare(unpriced, Integer.MAX_VALUE));
+    }
+
+    private static McRaptorState newState(McRaptorState back, int pattern, int boardTime) {
+        McRaptorState state = new McRaptorState();
+        state.back = back;
+        state.pattern = pattern;
+        state.boardTime = boardTime;
+        return state;
+    }
+
+    private static void assertSameFare(FareBounds expected, FareBounds actual) {
+        assertEquals(expected.cumulativeFarePaid, actual.cumulativeFarePaid);
+
+        TransferAllowance expectedAllowance = expected.transferAllowance;
+        TransferAllowance actualAllowance = actual.transferAllowance;
+        assertEquals(expectedAllowance.value, actualAllowance.value);
+        assertEquals(expectedAllowance.number, actualAllowance.number);
+        assertEquals(expectedAllowance.expirationTime, actualAllowance.expirationTime);
+    }
+
+    /**
+     * Original rule-based fare algorithm, which collects and prices all rides of a state on every call.
+     */
+    private static class BaselineFareCalculator {
+
+        private final FareStructure fareStructure;
+
+        private final FarePerRoute[] faresPerRoute;
+        private final FarePerTransfer[][] faresPerTransfer;
+
+        BaselineFareCalculator(FareStructure fareStructure, String[] routeIdPerPattern) {
+            this.fareStructure = fareStructure;
+
+            Map<String, FarePerRoute> indexRouteInfo = new HashMap<>();
+            for (FarePerRoute route : fareStructure.getFaresPerRoute()) {
+                indexRouteInfo.put(route.getRouteId(), route);
+            }
+            Map<String, Integer> indexTransportType = new HashMap<>();
+            for (int i = 0; i < fareStructure.getFaresPerType().size(); i++) {
+                indexTransportType.put(fareStructure.getFaresPerType().get(i).getType(), i);
+            }
+
+            this.faresPerRoute = new FarePerRoute[routeIdPerPattern.length];
+            for (int i = 0; i < routeIdPerPattern.length; i++) {
+                this.faresPerRoute[i] = indexRouteInfo.get(routeIdPerPattern[i]);
+                int typeIndex = indexTransportType.get(faresPerRoute[i].getFareType());
+                faresPerRoute[i].setTypeIndex(typeIndex);
+
+                FarePerType typeOfRoute = fareStructure.getFaresPerType().get(typeIndex);
+                if (!typeOfRoute.isUseRouteFare())
+                    faresPerRoute[i].setRouteFare(typeOfRoute.getFare());
+            }
+
+            int nTypes = fareStructure.getFaresPerType().size();
+            this.faresPerTransfer = new FarePerTransfer[nTypes][nTypes];
+            for (FarePerTransfer transfer : fareStructure.getFaresPerTransfer()) {
+                int firstTypeIndex = indexTransportType.get(transfer.getFirstLeg());
+                int secondTypeIndex = indexTransportType.get(transfer.getSecondLeg());
+
+                transfer.setFirstLegFullIntegerFare(fareStructure.getFaresPerType().get(firstTypeIndex).getIntegerFare());
+                transfer.setSecondLegFullIntegerFare(fareStructure.getFaresPerType().get(secondTypeIndex).getIntegerFare());
+
+                faresPerTransfer[firstTypeIndex][secondTypeIndex] = transfer;
+            }
+        }
+
+        FareBounds calculateFare(McRaptorState state) {
+            TIntList patterns = new TIntArrayList();
+            TIntList boardTimes = new TIntArrayList();
+
+            while (state != null) {
+                if (state.pattern > -1) {
+                    patterns.add(state.pattern);
+                    boardTimes.add(state.boardTime);
+                }
+                state = state.back;
+            }
+
+            patterns.reverse();
+            boardTimes.reverse();
+
+            int fareForState = 0;
+
+            int previousPatternIndex = -1;
+            int discountsApplied = 0;
+            int previousBoardTime = 0;
+
+            int currentPatternIndex = -1;
+            int currentBoardTime = -1;
+
+            if (patterns.size() > 0) {
+                currentPatternIndex = patterns.get(0);
+                previousBoardTime = boardTimes.get(0);
+
+                fareForState = faresPerRoute[currentPatternIndex].getIntegerFare();
+
+                previousPatternIndex = currentPatternIndex;
+            }
+
+            for (int ride = 1; ride < patterns.size(); ride++) {
+                currentPatternIndex = patterns.get(ride);
+                currentBoardTime = boardTimes.get(ride);
+
+                FarePerRoute firstLegType = faresPerRoute[previousPatternIndex];
+                FarePerRoute secondLegType = faresPerRoute[currentPatternIndex];
+
+                if (firstLegType.getTypeIndex() == secondLegType.getTypeIndex()) {
+                    FarePerType typeData = fareStructure.getFaresPerType().get(firstLegType.getTypeIndex());
+
+                    if (typeData.isUnlimitedTransfers()) {
+                        previousPatternIndex = currentPatternIndex;
+                        continue;
+                    }
+                }
+
+                if (discountsApplied >= fareStructure.getMaxDiscountedTransfers()) {
+                    fareForState += secondLegType.getIntegerFare();
+                } else {
+                    int[] integratedFare = getIntegrationFare(previousPatternIndex, currentPatternIndex,
+                            currentBoardTime - previousBoardTime);
+
+                    fareForState += integratedFare[0];
+                    discountsApplied += integratedFare[1];
+                }
+
+                previousPatternIndex = currentPatternIndex;
+                previousBoardTime = currentBoardTime;
+            }
+
+            if (fareStructure.getFareCap() > 0) {
+                fareForState = Math.min(fareForState, Math.round(fareStructure.getIntegerFareCap()));
+            }
+
+            if (currentPatternIndex == -1) {
+                return new FareBounds(fareForState, new TransferAllowance());
+            }
+
+            int numberOfRemainingTransfers = fareStructure.getMaxDiscountedTransfers() - discountsApplied;
+            if (numberOfRemainingTransfers <= 0) {
+                return new FareBounds(fareForState, new TransferAllowance());
+            }
+
+            int fullFare = faresPerRoute[currentPatternIndex].getIntegerFare();
+            int maxAllowanceValue = 0;
+            for (FarePerTransfer transfer : faresPerTransfer[faresPerRoute[currentPatternIndex].getTypeIndex()]) {
+                if (transfer != null) {
+                    int fullTransferFare = transfer.getFirstLegFullIntegerFare() + transfer.getSecondLegFullIntegerFare();
+
+                    int allowance = fullTransferFare - transfer.getIntegerFare();
+                    maxAllowanceValue = Math.max(allowance, maxAllowanceValue);
+                }
+            }
+
+            if (fareStructure.getFareCap() > 0 && fareForState > fareStructure.getIntegerFareCap()) {
+                maxAllowanceValue = Math.max(fullFare, maxAllowanceValue);
+            }
+
+            int expirationTime = currentBoardTime + fareStructure.getTransferTimeAllowanceSeconds();
+
+            return new FareBounds(fareForState, new TransferAllowance(maxAllowanceValue, numberOfRemainingTransfers, expirationTime));
+        }
+
+        // fare of the second leg, and 1 if the transfer discount was used
+        private int[] getIntegrationFare(int firstPattern, int secondPattern, int transferTime) {
+            FarePerRoute firstLeg = faresPerRoute[firstPattern];
+            FarePerRoute secondLeg = faresPerRoute[secondPattern];
+
+            FarePerTransfer transferFare = faresPerTransfer[firstLeg.getTypeIndex()][secondLeg.getTypeIndex()];
+            if (transferFare == null) {
+                return new int[] {secondLeg.getIntegerFare(), 0};
+            }
+
+            if (firstLeg.getTypeIndex() == secondLeg.getTypeIndex()) {
+                FarePerType typeData = fareStructure.getFaresPerType().get(firstLeg.getTypeIndex());
+                if (!typeData.isAllowSameRouteTransfer() && firstLeg.getRouteId().equals(secondLeg.getRouteId())) {
+                    return new int[] {secondLeg.getIntegerFare(), 0};
+                }
+            }
+
+            if (transferTime > fareStructure.getTransferTimeAllowanceSeconds()) {
+                return new int[] {secondLeg.getIntegerFare(), 0};
+            }
+
+            return new int[] {transferFare.getIntegerFare() - firstLeg.getIntegerFare(), 1};
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the percentiles used by accessibility, nearest opportunities and floating catchment reducers are the
+ * same ones R5's TravelTimeReducer writes to the travel time matrix.
+ */
+public class PercentileTravelTimeReducerTest {
+
+    private static final int[] PERCENTILES = {1, 5, 10, 25, 33, 50, 66, 75, 90, 95, 99};
+
+    @Test
+    public void percentilesMatchTravelTimeReducer() {
+        Random random = new Random(42);
+
+        for (int nIterations : new int[] {1, 2, 3, 10, 20, 37, 100, 150}) {
+            // whole minutes, so R5's conversion of seconds to minutes does not round anything
+            int[] travelTimes = new int[nIterations];
+            for (int i = 0; i < nIterations; i++) {
+                travelTimes[i] = (10 + random.nextInt(90)) * 60;
+            }
+
+            int[] expected = r5Percentiles(travelTimes);
+
+            int[] recorded = new int[PERCENTILES.length];
+            PercentileTravelTimeReducer reducer = new PercentileTravelTimeReducer(PERCENTILES) {
+                @Override
+                protected void recordPercentileTravelTimes(int target, int[] percentileTravelTimes) {
+                    System.arraycopy(percentileTravelTimes, 0, recorded, 0, percentileTravelTimes.length);
+                }
+            };
+            reducer.recordTravelTimesAtTarget(0, travelTimes.clone());
+
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                assertEquals(expected[p], recorded[p] / 60,
+                        "percentile " + PERCENTILES[p] + " of " + nIterations + " travel times");
+            }
+        }
+    }
+
+    /**
+     * Travel time percentiles in minutes, as written by R5 to the travel time matrix of a single target.
+     */
+    private static int[] r5Percentiles(int[] travelTimes) {
+        RegionalTask task = new RegionalTask();
+        task.oneToOne = true;
+        task.percentiles = PERCENTILES;
+        task.fromTime = 0;
+        task.toTime = 60;
+        task.monteCarloDraws = travelTimes.length;
+        task.maxTripDurationMinutes = 120;
+        task.recordTimes = true;
+        task.recordAccessibility = false;
+
+        TravelTimeReducer r5Reducer = new TravelTimeReducer(task, null);
+        r5Reducer.recordTravelTimesForTarget(0, travelTimes.clone());
+        OneOriginResult result = r5Reducer.finish();
+
+        int[] percentiles = new int[PERCENTILES.length];
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            percentiles[p] = result.travelTimes.getValues()[p][0];
+        }
+        return percentiles;
+    }
+}